@@ -0,0 +1,86 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to add a batch of new files to an existing index: one {@link Index#addEntry(IndexFile)} per file and
+ * one {@link Index#addEntry(IndexDirectory)} per file for its parent, which is combined with the directory
+ * already in the index. With a partially loaded index this includes loading the touched partitions, as in
+ * {@link de.tuberlin.cit.storageassistant.ArchiveManager#addFilesToArchive}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class IndexMergeBenchmark {
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"full", "partial"})
+    public String load;
+
+    private FileSystem fs;
+    private Path harPath;
+
+    private Index index;
+    private List<IndexFile> newFiles;
+    private List<IndexDirectory> parentUpdates;
+
+    @Setup
+    public void createArchive() throws IOException {
+        fs = SyntheticArchive.localFileSystem(new Configuration());
+        harPath = SyntheticArchive.getOrCreate(fs, entries);
+    }
+
+    @Setup(Level.Iteration)
+    public void loadIndex() throws IOException {
+        index = load.equals("partial") ? Index.loadPartially(harPath, fs) : new Index(harPath, fs);
+
+        // new files in randomly chosen existing directories
+        Random random = new Random(42);
+        int directories = Math.max(1, entries / (SyntheticArchive.FILES_PER_DIRECTORY + 1));
+        newFiles = new ArrayList<>(BATCH_SIZE);
+        parentUpdates = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            int directory = random.nextInt(directories);
+            int entry = directory * (SyntheticArchive.FILES_PER_DIRECTORY + 1);
+            newFiles.add(SyntheticArchive.file(entry, "new-" + i));
+            IndexDirectory parent = SyntheticArchive.directory(directory, "", 0);
+            parent.addChild("new-" + i + ".dat");
+            parentUpdates.add(parent);
+        }
+    }
+
+    @Benchmark
+    public Index addEntries() throws IOException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            index.addEntry(newFiles.get(i));
+            index.addEntry(parentUpdates.get(i));
+        }
+        return index;
+    }
+}
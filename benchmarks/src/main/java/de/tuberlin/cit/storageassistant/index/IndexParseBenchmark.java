@@ -0,0 +1,85 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HarFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse every line of an _index, with the {@link IndexReader} and, as the baseline, with the
+ * String.split based parsing IndexEntry.parse used before the tokenizer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class IndexParseBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int entries;
+
+    private FileSystem fs;
+    private Path indexPath;
+
+    @Setup
+    public void createArchive() throws IOException {
+        fs = SyntheticArchive.localFileSystem(new Configuration());
+        indexPath = new Path(SyntheticArchive.getOrCreate(fs, entries), "_index");
+    }
+
+    @Benchmark
+    public void tokenizer(Blackhole blackhole) throws IOException {
+        try (IndexReader reader = new IndexReader(fs.open(indexPath))) {
+            IndexEntry entry;
+            while ((entry = reader.next()) != null) {
+                blackhole.consume(entry);
+                blackhole.consume(entry.getHarHash());
+            }
+        }
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) throws IOException {
+        try (BufferedReader reader =
+                     new BufferedReader(new InputStreamReader(fs.open(indexPath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entrySet = line.split(" |\\+");
+                blackhole.consume(HarFileSystem.getHarHash(new Path(entrySet[0].replace("%2F", "/"))));
+                if (line.split(" ", 3)[1].equals(IndexEntry.TYPE_FILE)) {
+                    blackhole.consume(new Long(entrySet[3]));
+                    blackhole.consume(new Long(entrySet[4]));
+                    blackhole.consume(new Long(entrySet[5]));
+                } else {
+                    blackhole.consume(new Long(entrySet[2]));
+                    Set<String> children = new HashSet<>();
+                    for (int i = 8; i < entrySet.length; i++)
+                        children.add(entrySet[i]);
+                    blackhole.consume(children);
+                }
+            }
+        }
+    }
+}
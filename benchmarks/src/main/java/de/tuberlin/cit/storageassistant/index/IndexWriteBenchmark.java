@@ -0,0 +1,63 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link Index#writeToFile()} for a fully loaded index: serializing every entry into a new _index,
+ * replacing the old one and writing the _masterindex collected by the {@link IndexWriteObserver}. Runs on a
+ * copy of the synthetic archive, which is rewritten with the same content in every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class IndexWriteBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int entries;
+
+    private FileSystem fs;
+    private Path harPath;
+    private Index index;
+
+    @Setup
+    public void copyArchive() throws IOException {
+        fs = SyntheticArchive.localFileSystem(new Configuration());
+        harPath = SyntheticArchive.copy(fs, SyntheticArchive.getOrCreate(fs, entries), "write-" + entries + ".har");
+    }
+
+    @Setup(Level.Iteration)
+    public void loadIndex() throws IOException {
+        index = new Index(harPath, fs);
+    }
+
+    @Benchmark
+    public void writeToFile() {
+        index.writeToFile();
+    }
+
+    @TearDown
+    public void deleteCopy() throws IOException {
+        fs.delete(harPath, true);
+    }
+}
@@ -0,0 +1,122 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+
+/**
+ * Creates archives with a synthetic index on the local file system. Every directory holds ten files, so
+ * every eleventh entry is a directory. The directories are spread over 100 sets below /input:
+ *
+ * /input/set7/dir107 dir ... file-0.dat ... file-9.dat
+ * /input/set7/dir107/file-3.dat file part-1 4837376 4096 ...
+ *
+ * Creating an index with millions of entries takes a while, so archives are kept in the directory set by
+ * the system property ahar.benchmark.dir (default: java.io.tmpdir/ahar-benchmarks) and reused by later runs.
+ */
+public class SyntheticArchive {
+    public static final String BENCHMARK_DIR_PROPERTY = "ahar.benchmark.dir";
+
+    static final int FILES_PER_DIRECTORY = 10;
+    static final long FILE_LENGTH = 4096;
+    private static final int SETS = 100;
+    private static final long TIME = 1478098068547L;
+
+    private SyntheticArchive() {
+    }
+
+    /**
+     * @return the raw local file system, without the checksum files of the default local file system
+     */
+    public static FileSystem localFileSystem(Configuration conf) throws IOException {
+        return FileSystem.getLocal(conf).getRawFileSystem();
+    }
+
+    public static Path benchmarkDirectory() {
+        return new Path(System.getProperty(BENCHMARK_DIR_PROPERTY,
+                new Path(System.getProperty("java.io.tmpdir"), "ahar-benchmarks").toString()));
+    }
+
+    /**
+     * @param entries number of file and directory entries of the index, without / and the directories of
+     *                /input
+     * @return path of an archive with _index and _masterindex, created if it does not exist yet
+     */
+    public static Path getOrCreate(FileSystem fs, int entries) throws IOException {
+        Path harPath = new Path(benchmarkDirectory(), "synthetic-" + entries + ".har");
+        if (fs.exists(new Path(harPath, "_masterindex")))
+            return harPath;
+
+        Path newHarPath = new Path(benchmarkDirectory(), "synthetic-" + entries + ".har.tmp");
+        fs.delete(newHarPath, true);
+        fs.mkdirs(newHarPath);
+        fs.create(new Path(newHarPath, "_index")).close();
+
+        Index index = new Index(newHarPath, fs);
+        addRoot(index);
+        for (int i = 0; i < entries; i++) {
+            if (i % (FILES_PER_DIRECTORY + 1) == 0) {
+                int directory = i / (FILES_PER_DIRECTORY + 1);
+                index.addEntry(directory(directory, "file-", FILES_PER_DIRECTORY));
+                IndexDirectory set = new IndexDirectory("/input/set" + (directory % SETS), TIME, "493", "hadoop",
+                        "supergroup");
+                set.addChild("dir" + directory);
+                index.addEntry(set);
+            } else
+                index.addEntry(file(i, "file-" + (i % (FILES_PER_DIRECTORY + 1) - 1)));
+        }
+        index.writeToFile();
+        if (!fs.exists(new Path(newHarPath, "_masterindex")))
+            throw new IOException("Unable to write the index of " + newHarPath);
+
+        if (!fs.rename(newHarPath, harPath))
+            throw new IOException("Unable to rename " + newHarPath + " to " + harPath);
+        return harPath;
+    }
+
+    /**
+     * Copies an archive, for benchmarks that change the archive they run on.
+     */
+    public static Path copy(FileSystem fs, Path harPath, String name) throws IOException {
+        Path copyPath = new Path(benchmarkDirectory(), name);
+        fs.delete(copyPath, true);
+        if (!FileUtil.copy(fs, harPath, fs, copyPath, false, fs.getConf()))
+            throw new IOException("Unable to copy " + harPath + " to " + copyPath);
+        return copyPath;
+    }
+
+    private static void addRoot(Index index) throws IOException {
+        IndexDirectory root = new IndexDirectory("/", TIME, "493", "hadoop", "supergroup");
+        root.addChild("input");
+        index.addEntry(root);
+        IndexDirectory input = new IndexDirectory("/input", TIME, "493", "hadoop", "supergroup");
+        for (int set = 0; set < SETS; set++)
+            input.addChild("set" + set);
+        index.addEntry(input);
+    }
+
+    static String directoryPath(int directory) {
+        return "/input/set" + (directory % SETS) + "/dir" + directory;
+    }
+
+    /**
+     * @return entry of a directory with the children prefix0.dat, prefix1.dat, ...
+     */
+    static IndexDirectory directory(int directory, String childPrefix, int children) {
+        IndexDirectory entry = new IndexDirectory(directoryPath(directory), TIME, "493", "hadoop", "supergroup");
+        for (int child = 0; child < children; child++)
+            entry.addChild(childPrefix + child + ".dat");
+        return entry;
+    }
+
+    /**
+     * @return entry of a file in the directory of the i-th entry
+     */
+    static IndexFile file(int i, String name) {
+        return new IndexFile(directoryPath(i / (FILES_PER_DIRECTORY + 1)) + "/" + name + ".dat", "part-" + (i % 4),
+                i * FILE_LENGTH, FILE_LENGTH, TIME, "420", "hadoop", "supergroup");
+    }
+}
@@ -0,0 +1,107 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.SyntheticArchive;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time the {@link PartFileManager} needs to place input files into part files with each
+ * {@link PlacementStrategy} and add their index entries, without reading or writing any file content. Input
+ * files are between 1 KB and 64 KB and part files have 512 MB blocks, the default block size of HAR part
+ * files.
+ *
+ * The input files are synthetic FileStatus objects. At most {@link #DISTINCT_FILES} distinct ones are
+ * created and reused, so the input list of large runs fits into memory; the placement itself only looks at
+ * their lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PlacementBenchmark {
+    private static final int DISTINCT_FILES = 1000000;
+    private static final long BLOCK_SIZE = 512L * 1024 * 1024;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"first-fit", "best-fit-decreasing", "block-aligned"})
+    public String strategy;
+
+    private FileSystem fs;
+    private Path harPath;
+    private List<FileStatus> inputFiles;
+
+    private Index index;
+    private PartFileManager partFileManager;
+
+    @Setup
+    public void createInputFiles() throws IOException {
+        Configuration conf = new Configuration();
+        conf.setLong("fs.local.block.size", BLOCK_SIZE);
+        conf.set(PartFileManager.PLACEMENT_STRATEGY_KEY, strategy);
+        fs = SyntheticArchive.localFileSystem(conf);
+        harPath = new Path(SyntheticArchive.benchmarkDirectory(), "placement-" + strategy + "-" + entries + ".har");
+
+        Random random = new Random(42);
+        FsPermission permission = new FsPermission((short) 420);
+        List<FileStatus> distinctFiles = new ArrayList<>();
+        for (int i = 0; i < Math.min(entries, DISTINCT_FILES); i++) {
+            long length = 1024 + random.nextInt(63 * 1024);
+            distinctFiles.add(new FileStatus(length, false, 3, BLOCK_SIZE, 1478098068547L, 1478098068547L,
+                    permission, "hadoop", "supergroup", new Path("/input/dir" + (i / 10) + "/file-" + i + ".dat")));
+        }
+        inputFiles = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++)
+            inputFiles.add(distinctFiles.get(i % distinctFiles.size()));
+    }
+
+    /**
+     * Starts every iteration with an empty archive that only has an empty part-0.
+     */
+    @Setup(Level.Iteration)
+    public void createArchive() throws IOException {
+        fs.delete(harPath, true);
+        fs.mkdirs(harPath);
+        fs.create(new Path(harPath, "_index")).close();
+        fs.create(new Path(harPath, "part-0")).close();
+        index = new Index(harPath, fs);
+        partFileManager = new PartFileManager(fs, harPath);
+    }
+
+    @Benchmark
+    public Index place() throws IOException {
+        partFileManager.addFilesToPartFiles(inputFiles, index);
+        return index;
+    }
+
+    @TearDown
+    public void deleteArchive() throws IOException {
+        fs.delete(harPath, true);
+    }
+}
@@ -2,54 +2,179 @@ package de.tuberlin.cit.storageassistant;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ShutdownHookManager;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 /**
  * Created by joh-mue on 06/03/17.
  */
 public class AHarCLI {
+    private static final String USAGE = "Usage: StorageAssitant.jar -cp [hdfs://namenode:port] hdfs:/path/to/source hdfs:///path/to/archive.har\n"
+            + "       StorageAssitant.jar -cp [hdfs://namenode:port] -manifest file:///path/to/manifest hdfs:///path/to/archive.har\n"
+            + "       StorageAssitant.jar -x [hdfs://namenode:port] hdfs:///path/to/archive.har hdfs:///path/to/destination\n"
+            + "       StorageAssitant.jar -compact [hdfs://namenode:port] hdfs:///path/to/archive.har\n"
+            + "       StorageAssitant.jar -daemon [hdfs://namenode:port] hdfs:///path/to/archive.har\n"
+            + "       StorageAssitant.jar -watch [hdfs://namenode:port] hdfs:///path/to/staging hdfs:///path/to/archive.har";
+
     /**
      * -cp [hdfs://namenode:port] hdfs:/path/to/source hdfs:///path/to/archive.har
+     * -cp [hdfs://namenode:port] -manifest file:///path/to/manifest hdfs:///path/to/archive.har
+     * -x [hdfs://namenode:port] hdfs:///path/to/archive.har hdfs:///path/to/destination
+     * -compact [hdfs://namenode:port] hdfs:///path/to/archive.har
+     * -daemon [hdfs://namenode:port] hdfs:///path/to/archive.har
+     * -watch [hdfs://namenode:port] hdfs:///path/to/staging hdfs:///path/to/archive.har
+     *
+     * With -manifest the source paths are read from the manifest, one per line, and added in batches. -x
+     * extracts the whole archive into the destination directory, -compact repacks its part files. -daemon
+     * keeps the archive open and commits paths sent to the local port ahar.daemon.port until it is killed,
+     * -watch commits the files arriving in the staging directory until it is killed.
      *
      * @param args
      */
     public static void main(String[] args) {
         Configuration conf = initializeConfiguration();
 
-        if ("-cp".equalsIgnoreCase(args[0])) {
-            String command = new String(args[0]);
-        } else {
-            System.out.println("Usage: StorageAssitant.jar -cp [hdfs://namenode:port] hdfs:/path/to/source hdfs:///path/to/archive.har");
+        boolean extract = args.length > 0 && "-x".equalsIgnoreCase(args[0]);
+        boolean compact = args.length > 0 && "-compact".equalsIgnoreCase(args[0]);
+        boolean daemon = args.length > 0 && "-daemon".equalsIgnoreCase(args[0]);
+        boolean watch = args.length > 0 && "-watch".equalsIgnoreCase(args[0]);
+        if (args.length < (compact || daemon ? 2 : 3)
+                || !extract && !compact && !daemon && !watch && !"-cp".equalsIgnoreCase(args[0])) {
+            System.out.println(USAGE);
             System.exit(1);
         }
 
-        Path[] srcPaths;
         String defaultFS = "";
-
+        int firstSrcArg = 1;
         if (args[1].matches("hdfs:\\/\\/.+:\\d{4,6}")) {
             defaultFS = args[1];
             conf.set("fs.defaultFS", defaultFS);
-            srcPaths = parseSrcPaths((String[]) ArrayUtils.subarray(args, 2, args.length - 1));
+            firstSrcArg = 2;
+        }
+
+        if (compact || daemon) {
+            if (args.length - firstSrcArg != 1) {
+                System.out.println(USAGE);
+                System.exit(1);
+            }
+            if (compact)
+                compact(conf, new Path(args[firstSrcArg]), defaultFS);
+            else
+                runDaemon(conf, new Path(args[firstSrcArg]), defaultFS);
+            return;
+        }
+        if (extract || watch) {
+            if (args.length - firstSrcArg != 2) {
+                System.out.println(USAGE);
+                System.exit(1);
+            }
+            if (extract)
+                extract(conf, new Path(args[firstSrcArg]), new Path(args[firstSrcArg + 1]), defaultFS);
+            else
+                watch(conf, new Path(args[firstSrcArg]), new Path(args[firstSrcArg + 1]), defaultFS);
+            return;
+        }
+
+        Path harPath = new Path(args[args.length - 1]);
+        boolean useManifest = firstSrcArg < args.length && "-manifest".equalsIgnoreCase(args[firstSrcArg]);
+        String[] srcArgs = (String[]) ArrayUtils.subarray(args, useManifest ? firstSrcArg + 1 : firstSrcArg,
+                args.length - 1);
+        if (srcArgs.length == 0 || useManifest && srcArgs.length != 1) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        Path[] srcPaths = parseSrcPaths(srcArgs);
+
+        if (everythingIsSet(srcPaths, harPath, defaultFS)) {
+            try {
+                ArchiveManager archiveManager = new ArchiveManager(conf);
+                if (useManifest)
+                    archiveManager.addFilesFromManifest(srcPaths[0], harPath);
+                else
+                    archiveManager.addFilesToArchive(srcPaths, harPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
         } else {
-            srcPaths = parseSrcPaths((String[]) ArrayUtils.subarray(args, 1, args.length - 1));
+            System.out.println(USAGE);
+        }
+    }
+
+    private static void extract(Configuration conf, Path harPath, Path destination, String defaultFS) {
+        if (everythingIsSet(new Path[]{harPath}, destination, defaultFS)) {
+            try {
+                new ArchiveManager(conf).extractArchive(harPath, destination);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void compact(Configuration conf, Path harPath, String defaultFS) {
+        if (everythingIsSet(new Path[]{harPath}, harPath, defaultFS)) {
+            try {
+                new ArchiveManager(conf).compactArchive(harPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
 
+    /**
+     * Returns once the daemon runs, its committer keeps the JVM alive. Killing the JVM commits the waiting
+     * paths and releases the archive.
+     */
+    private static void runDaemon(Configuration conf, Path harPath, String defaultFS) {
+        if (everythingIsSet(new Path[]{harPath}, harPath, defaultFS)) {
+            try {
+                AppendDaemon daemon = new ArchiveManager(conf).startAppendDaemon(harPath);
+                closeOnShutdown(daemon);
+                daemon.listen(conf.getInt(AppendDaemon.PORT_KEY, AppendDaemon.DEFAULT_PORT));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
 
-            Path harPath = new Path(args[args.length - 1]);
+    /**
+     * Runs until the JVM is killed, which waits for the files handed over so far to be committed.
+     */
+    private static void watch(Configuration conf, Path stagingPath, Path harPath, String defaultFS) {
+        if (everythingIsSet(new Path[]{stagingPath}, harPath, defaultFS)) {
+            try {
+                AppendDaemon daemon = new ArchiveManager(conf).startAppendDaemon(harPath);
+                StagingWatcher watcher = new StagingWatcher(daemon, stagingPath, conf);
+                closeOnShutdown(watcher, daemon);
+                watcher.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
 
-            if (everythingIsSet(srcPaths, harPath, defaultFS)) {
+    /**
+     * Closes the given objects in order when the JVM shuts down, before Hadoop closes the cached FileSystems
+     * they still need to commit and to release the archive.
+     */
+    private static void closeOnShutdown(Closeable... closeables) {
+        ShutdownHookManager.get().addShutdownHook(() -> {
+            for (Closeable closeable : closeables) {
                 try {
-                    ArchiveManager archiveManager = new ArchiveManager(conf);
-                    archiveManager.addFilesToArchive(srcPaths, harPath);
+                    closeable.close();
                 } catch (IOException e) {
                     e.printStackTrace();
-                    System.exit(1);
                 }
-            } else {
-                System.out.println("Usage: StorageAssitant.jar -cp [hdfs://namenode:port] hdfs:/path/to/source hdfs:///path/to/archive.har");
             }
-        }
+        }, FileSystem.SHUTDOWN_HOOK_PRIORITY + 1);
     }
 
     private static Configuration initializeConfiguration() {
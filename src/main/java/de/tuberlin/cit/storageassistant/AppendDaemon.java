@@ -0,0 +1,425 @@
+package de.tuberlin.cit.storageassistant;
+
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import de.tuberlin.cit.storageassistant.part.PartFileManager;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an archive open for appends in a long running process. The archive is locked, its index and part
+ * files are loaded once, and added paths are committed in groups: a commit starts
+ * {@link #COMMIT_INTERVAL_KEY} milliseconds after the first path arrived, or as soon as
+ * {@link #COMMIT_PATHS_KEY} paths are waiting. Each commit appends to the part files and rewrites only the
+ * changed partitions of the resident index, instead of starting a JVM, parsing the index and listing the
+ * part files for every append.
+ *
+ * Paths are added with {@link #add(Path)} or, after {@link #listen(int)}, over a TCP connection on the
+ * loopback interface: the client sends one path per line and gets one line per path once it is committed,
+ * "OK path" or "FAILED path reason", in the order the commits complete. A connection may stay open for
+ * many paths. Files that are archived already are not added again, they fail with an
+ * {@link AlreadyArchivedException}.
+ *
+ * Every user of the host can connect to the loopback interface, and the daemon reads the added paths with
+ * the permissions of the user running it. So a client has to send a secret as its first line, which the
+ * daemon writes into a file only that user can read, see {@link #SECRET_FILE_KEY}.
+ *
+ * The daemon holds the {@link ArchiveLock} until it is closed, so other clients cannot change the archive
+ * meanwhile. A failed commit is rolled back through its {@link Journal} and the index and part files are
+ * loaded again.
+ */
+public class AppendDaemon implements Closeable {
+    private final static Logger log = Logger.getLogger(AppendDaemon.class);
+
+    /**
+     * Port the daemon started by the command line listens on, on the loopback interface only.
+     */
+    public static final String PORT_KEY = "ahar.daemon.port";
+    public static final int DEFAULT_PORT = 7373;
+
+    /**
+     * File the daemon writes the secret clients authenticate with into, readable by its owner only. Empty for
+     * .ahar-daemon-&lt;port&gt;.secret in the home directory of the user running the daemon.
+     */
+    public static final String SECRET_FILE_KEY = "ahar.daemon.secret.file";
+    public static final String DEFAULT_SECRET_FILE = "";
+
+    static final int AUTHENTICATION_TIMEOUT = 10000;
+
+    /**
+     * Milliseconds a commit waits for more paths after the first one arrived.
+     */
+    public static final String COMMIT_INTERVAL_KEY = "ahar.daemon.commit.interval.ms";
+    public static final long DEFAULT_COMMIT_INTERVAL = 200;
+
+    /**
+     * Number of waiting paths that start a commit right away. Also the most paths one commit takes.
+     */
+    public static final String COMMIT_PATHS_KEY = "ahar.daemon.commit.paths";
+    public static final int DEFAULT_COMMIT_PATHS = 10000;
+
+    private final FileSystem fs;
+    private final Path harPath;
+    private final long commitInterval;
+    private final int commitPaths;
+
+    private final List<Request> pending = new ArrayList<>();
+    private boolean closed = false;
+
+    private ArchiveLock lock;
+    private Index index;
+    private PartFileManager partFileManager;
+    private Thread committer;
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+    private File secretFile;
+    private byte[] secret;
+
+    public AppendDaemon(FileSystem fs, Path harPath) {
+        this.fs = fs;
+        this.harPath = harPath;
+        this.commitInterval = Math.max(0, fs.getConf().getLong(COMMIT_INTERVAL_KEY, DEFAULT_COMMIT_INTERVAL));
+        this.commitPaths = Math.max(1, fs.getConf().getInt(COMMIT_PATHS_KEY, DEFAULT_COMMIT_PATHS));
+    }
+
+    /**
+     * Locks the archive, recovers an interrupted change, loads index and part files and starts committing.
+     */
+    public void start() throws IOException {
+        lock = ArchiveLock.acquire(fs, harPath);
+        try {
+            Journal.recover(fs, harPath, lock);
+            load();
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+        committer = new Thread(this::commitLoop, "ahar-daemon-committer " + harPath);
+        committer.start();
+        log.info("Appending to " + harPath + " with commits every " + commitInterval + " ms or "
+                + commitPaths + " paths");
+    }
+
+    private void load() throws IOException {
+        index = Index.loadPartially(harPath, fs);
+        partFileManager = new PartFileManager(fs, harPath);
+    }
+
+    /**
+     * Accepts paths over TCP connections on the loopback interface, from clients that send the secret in
+     * {@link #getSecretFile()} first.
+     *
+     * @param port 0 for any free port
+     * @return the port listened on
+     */
+    public int listen(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        try {
+            writeSecret(serverSocket.getLocalPort());
+        } catch (IOException | RuntimeException e) {
+            serverSocket.close();
+            throw e;
+        }
+        connections = Executors.newCachedThreadPool();
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed())
+                        log.warn("Unable to accept a connection", e);
+                }
+            }
+        }, "ahar-daemon-acceptor " + harPath);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Accepting paths for " + harPath + " on " + serverSocket.getLocalSocketAddress()
+                + " from clients that send the secret in " + secretFile + " first");
+        return serverSocket.getLocalPort();
+    }
+
+    private void writeSecret(int port) throws IOException {
+        String configured = fs.getConf().get(SECRET_FILE_KEY, DEFAULT_SECRET_FILE);
+        secretFile = configured.isEmpty()
+                ? new File(System.getProperty("user.home"), ".ahar-daemon-" + port + ".secret") : new File(configured);
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        secret = Hex.encodeHexString(random).getBytes(StandardCharsets.UTF_8);
+
+        Files.deleteIfExists(secretFile.toPath()); // left by a daemon that was killed, maybe with other permissions
+        try {
+            Files.createFile(secretFile.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Unable to create " + secretFile + " readable by its owner only", e);
+        }
+        Files.write(secretFile.toPath(), (new String(secret, StandardCharsets.UTF_8) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the file holding the secret clients send first, null before {@link #listen(int)}
+     */
+    public File getSecretFile() {
+        return secretFile;
+    }
+
+    public Path getHarPath() {
+        return harPath;
+    }
+
+    /**
+     * Queues the path, a file or a directory, for the next commit.
+     *
+     * @return completed once the path is committed, or exceptionally if its commit failed
+     */
+    public CompletableFuture<Void> add(Path srcPath) {
+        return add(srcPath, false);
+    }
+
+    /**
+     * @param alone commit the path on its own, e.g. because its commit failed before, so it cannot fail the
+     *              commit of other paths again
+     */
+    public CompletableFuture<Void> add(Path srcPath, boolean alone) {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        synchronized (pending) {
+            if (closed) {
+                committed.completeExceptionally(new IOException("The daemon of " + harPath + " is closed"));
+                return committed;
+            }
+            pending.add(new Request(srcPath, committed, alone));
+            if (pending.size() == 1 || pending.size() >= commitPaths)
+                pending.notifyAll();
+        }
+        return committed;
+    }
+
+    /**
+     * Answers are written by the connection pool, a slow client does not hold up commits.
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)) {
+            connection.setSoTimeout(AUTHENTICATION_TIMEOUT);
+            String first = in.readLine();
+            if (first == null || !MessageDigest.isEqual(secret, first.trim().getBytes(StandardCharsets.UTF_8))) {
+                log.warn("Rejected a client of " + harPath + " that did not send the secret in " + secretFile);
+                answer(out, "FAILED send the secret in " + secretFile + " first");
+                return;
+            }
+            connection.setSoTimeout(0);
+            List<CompletableFuture<Void>> answers = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String path = line.trim();
+                if (path.isEmpty())
+                    continue;
+                if (answers.size() >= 1024)
+                    answers.removeIf(CompletableFuture::isDone);
+                answers.add(add(new Path(path)).handleAsync((ignored, failure) -> {
+                    answer(out, failure == null ? "OK " + path : "FAILED " + path + " " + failure.getMessage());
+                    return null;
+                }, connections));
+            }
+            CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[answers.size()])).join();
+        } catch (IOException e) {
+            log.warn("Connection to an append client failed", e);
+        }
+    }
+
+    private static void answer(Writer out, String line) {
+        synchronized (out) {
+            try {
+                out.write(line + "\n");
+                out.flush();
+            } catch (IOException e) {
+                log.debug("Unable to answer an append client", e);
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<Request> batch;
+            synchronized (pending) {
+                try {
+                    while (pending.isEmpty() && !closed)
+                        pending.wait();
+                    long deadline = System.currentTimeMillis() + commitInterval;
+                    long now;
+                    while (!closed && pending.size() < commitPaths && (now = System.currentTimeMillis()) < deadline)
+                        pending.wait(deadline - now);
+                } catch (InterruptedException e) {
+                    closed = true; // pending paths are still committed below
+                }
+                if (pending.isEmpty())
+                    return;
+                int end = 1;
+                if (!pending.get(0).alone) {
+                    while (end < pending.size() && end < commitPaths && !pending.get(end).alone)
+                        end++;
+                }
+                List<Request> taken = pending.subList(0, end);
+                batch = new ArrayList<>(taken);
+                taken.clear();
+            }
+            if (!commit(batch)) {
+                failPending();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the daemon cannot go on, because it lost the lock or could not load the archive again
+     */
+    private boolean commit(List<Request> batch) {
+        long startTime = System.currentTimeMillis();
+        Map<Path, FileStatus> srcPaths = new LinkedHashMap<>(); // handed to the add, which need not look them up again
+        List<Request> committable = new ArrayList<>();
+        for (Request request : batch) {
+            try {
+                FileStatus status = fs.getFileStatus(request.srcPath); // a missing path would fail the whole group
+                if (status.isFile() && index.containsEntryFor(status)) { // would be skipped silently
+                    request.committed.completeExceptionally(new AlreadyArchivedException(request.srcPath
+                            + " is archived in " + harPath + " already"));
+                    continue;
+                }
+                srcPaths.put(status.getPath(), status);
+            } catch (IOException e) {
+                request.committed.completeExceptionally(e);
+                continue;
+            }
+            committable.add(request);
+        }
+        if (committable.isEmpty())
+            return true;
+        batch = committable;
+        Journal journal = null;
+        try {
+            journal = Journal.begin(fs, harPath, lock);
+            partFileManager.addToPartFilesAndUpdateIndex(new ArrayList<>(srcPaths.values()), index);
+            partFileManager.writeAllToFile();
+            lock.verify();
+            index.writeToFile(journal);
+            journal.finish();
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to commit " + srcPaths.size() + " paths to " + harPath, e);
+            if (journal != null && lock.isHeld())
+                journal.abort(e);
+            for (Request request : batch)
+                request.committed.completeExceptionally(e);
+            if (!lock.isHeld())
+                return false;
+            try {
+                load(); // the resident index and part files hold the failed commit
+            } catch (IOException reloadFailure) {
+                log.error("Unable to load " + harPath + " again, stopping", reloadFailure);
+                return false;
+            }
+            return true;
+        }
+        for (Request request : batch)
+            request.committed.complete(null);
+        log.info("Committed " + srcPaths.size() + " paths to " + harPath + " in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return true;
+    }
+
+    private void failPending() {
+        List<Request> failed;
+        synchronized (pending) {
+            closed = true;
+            failed = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Request request : failed)
+            request.committed.completeExceptionally(new IOException("The daemon of " + harPath + " stopped"));
+    }
+
+    /**
+     * Stops accepting paths, commits the paths that are waiting and releases the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (pending) {
+            closed = true;
+            pending.notifyAll();
+        }
+        if (serverSocket != null)
+            serverSocket.close();
+        try {
+            if (committer != null)
+                committer.join();
+            if (connections != null) {
+                connections.shutdown();
+                connections.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the daemon of " + harPath, e);
+        } finally {
+            if (secretFile != null)
+                Files.deleteIfExists(secretFile.toPath());
+            if (lock != null)
+                lock.close();
+        }
+        log.info("Stopped appending to " + harPath);
+    }
+
+    private static class Request {
+        private final Path srcPath;
+        private final CompletableFuture<Void> committed;
+        private final boolean alone;
+
+        Request(Path srcPath, CompletableFuture<Void> committed, boolean alone) {
+            this.srcPath = srcPath;
+            this.committed = committed;
+            this.alone = alone;
+        }
+    }
+
+    /**
+     * An added file was not committed because the archive holds a file with its path already, which may be
+     * an older version of it.
+     */
+    public static class AlreadyArchivedException extends FileAlreadyExistsException {
+        private static final long serialVersionUID = 1L;
+
+        AlreadyArchivedException(String message) {
+            super(message);
+        }
+    }
+}
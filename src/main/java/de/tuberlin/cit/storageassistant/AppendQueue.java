@@ -0,0 +1,163 @@
+package de.tuberlin.cit.storageassistant;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Merges the appends of several clients to the same archive into batched commits. A client writes its source
+ * paths as a request file into _pending in the archive directory and waits. Whichever waiting client gets the
+ * {@link ArchiveLock} adds the paths of all pending requests with one append and one index rewrite, and
+ * answers every request with a .done file. Requests that arrive during a commit are taken by the next one, so
+ * clients appending at the same time need one commit between them instead of one each.
+ *
+ * A failing commit fails every request in it. A commit takes pending requests until they hold
+ * {@link ArchiveManager#MANIFEST_BATCH_KEY} paths, in the order they arrived. It claims each request by
+ * renaming it to .claimed before reading it, and a client that gives up waiting withdraws its request by
+ * deleting it. Only one of both succeeds, so a client that cannot withdraw its request knows that a commit
+ * took it and reports the outcome of its append as unknown instead of failed.
+ */
+class AppendQueue {
+    private final static Logger log = Logger.getLogger(AppendQueue.class);
+
+    private static final String REQUEST_SUFFIX = ".request";
+    private static final String CLAIMED_SUFFIX = ".claimed";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String SUCCEEDED = "ok";
+
+    private final ArchiveManager archiveManager;
+    private final FileSystem fs;
+    private final Path harPath;
+    private final Path queuePath;
+
+    AppendQueue(ArchiveManager archiveManager, FileSystem fs, Path harPath) {
+        this.archiveManager = archiveManager;
+        this.fs = fs;
+        this.harPath = harPath;
+        this.queuePath = new Path(harPath, "_pending");
+    }
+
+    /**
+     * Queues the paths and returns once a commit of any client added them.
+     */
+    void add(Path[] srcPaths) throws IOException {
+        String id = UUID.randomUUID().toString();
+        Path request = new Path(queuePath, id + REQUEST_SUFFIX);
+        Path done = new Path(queuePath, id + DONE_SUFFIX);
+        Path temporary = new Path(queuePath, id + ".tmp");
+        try (FSDataOutputStream out = fs.create(temporary, false)) {
+            for (Path srcPath : srcPaths)
+                out.write((srcPath.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (!fs.rename(temporary, request))
+            throw new IOException("Unable to queue " + request);
+
+        long deadline = System.currentTimeMillis() + fs.getConf().getLong(ArchiveLock.WAIT_KEY,
+                ArchiveLock.DEFAULT_WAIT);
+        ArchiveLock.Waiter waiter = new ArchiveLock.Waiter(fs, harPath);
+        try {
+            while (!fs.exists(done)) {
+                ArchiveLock lock = waiter.tryAcquire();
+                if (lock != null) {
+                    try {
+                        commitPending(lock);
+                    } finally {
+                        lock.close();
+                    }
+                } else if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Gave up waiting for a commit of the queued append to " + harPath);
+                } else {
+                    ArchiveLock.sleep(ArchiveLock.POLL_INTERVAL, harPath);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (fs.delete(request, false)) // withdrawn, no commit took it
+                throw e;
+            if (!fs.exists(done))
+                throw new IOException("The outcome of the queued append to " + harPath + " is unknown, a commit "
+                        + "took it and did not answer yet", e);
+        }
+
+        String result = DFSUtils.readFileContent(done, fs).trim();
+        fs.delete(done, false);
+        if (!result.equals(SUCCEEDED))
+            throw new IOException("Queued append to " + harPath + " failed: " + result);
+    }
+
+    /**
+     * Adds the paths of the oldest pending requests and answers them.
+     */
+    private void commitPending(ArchiveLock lock) throws IOException {
+        FileStatus[] requests = fs.listStatus(queuePath, path -> path.getName().endsWith(REQUEST_SUFFIX));
+        Arrays.sort(requests, Comparator.comparingLong(FileStatus::getModificationTime));
+        int batchSize = Math.max(1, fs.getConf().getInt(ArchiveManager.MANIFEST_BATCH_KEY,
+                ArchiveManager.DEFAULT_MANIFEST_BATCH));
+        Set<Path> srcPaths = new LinkedHashSet<>();
+        List<Path> batch = new ArrayList<>();
+        for (FileStatus request : requests) {
+            if (!batch.isEmpty() && srcPaths.size() >= batchSize)
+                break;
+            String id = idOf(request.getPath(), REQUEST_SUFFIX);
+            Path claimed = new Path(queuePath, id + CLAIMED_SUFFIX);
+            if (!fs.rename(request.getPath(), claimed))
+                continue; // withdrawn by its client
+            for (String line : DFSUtils.readLines(claimed, fs)) {
+                if (!line.trim().isEmpty())
+                    srcPaths.add(new Path(line.trim()));
+            }
+            batch.add(claimed);
+        }
+        if (batch.isEmpty())
+            return;
+
+        long startTime = System.currentTimeMillis();
+        String result = SUCCEEDED;
+        try {
+            archiveManager.addFilesLocked(srcPaths.toArray(new Path[srcPaths.size()]), harPath, lock);
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to commit " + batch.size() + " queued appends to " + harPath, e);
+            result = e.toString();
+        }
+        for (Path claimed : batch) {
+            String id = idOf(claimed, CLAIMED_SUFFIX);
+            Path temporary = new Path(queuePath, id + ".tmp"); // the client must not read a half written result
+            try (FSDataOutputStream out = fs.create(temporary, true)) {
+                out.write(result.getBytes(StandardCharsets.UTF_8));
+            }
+            DFSUtils.replaceFile(fs, temporary, new Path(queuePath, id + DONE_SUFFIX));
+            fs.delete(claimed, false);
+        }
+        deleteAbandonedFiles();
+        log.info(String.format("Committed %d queued appends with %d paths to %s in %.1f s", batch.size(),
+                srcPaths.size(), harPath, (System.currentTimeMillis() - startTime) / 1000.0));
+    }
+
+    private static String idOf(Path queued, String suffix) {
+        return queued.getName().substring(0, queued.getName().length() - suffix.length());
+    }
+
+    /**
+     * Results of clients that gave up waiting or died are never read, and claims of commits that died are
+     * never answered.
+     */
+    private void deleteAbandonedFiles() throws IOException {
+        long oldest = System.currentTimeMillis() - fs.getConf().getLong(ArchiveLock.WAIT_KEY, ArchiveLock.DEFAULT_WAIT);
+        for (FileStatus file : fs.listStatus(queuePath, path -> path.getName().endsWith(DONE_SUFFIX)
+                || path.getName().endsWith(CLAIMED_SUFFIX))) {
+            if (file.getModificationTime() < oldest)
+                fs.delete(file.getPath(), false);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package de.tuberlin.cit.storageassistant;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Exclusive lock of an archive, held by the one client that may change it. The lock is the file _lock in the
+ * archive directory, created with overwrite disabled, which the NameNode grants to exactly one client. It
+ * holds a random token and the process that took it.
+ *
+ * The holder renews the lock by setting its modification time every third of {@link #EXPIRY_KEY}. A client
+ * waiting for the lock that sees neither the token nor the modification time of the lock change for that
+ * long considers the holder dead and breaks the lock. Only the waiting client's own clock is used for that,
+ * so clocks of different hosts need not agree. An empty lock, whose holder died before it wrote its token,
+ * ages the same way. A holder that finds its lock broken or replaced stops renewing it, and {@link #verify()}
+ * fails before it commits anything. Tasks that commit for the holder in another process check its token with
+ * {@link #verify(FileSystem, Path, String)}.
+ */
+public class ArchiveLock implements Closeable {
+    private final static Logger log = Logger.getLogger(ArchiveLock.class);
+
+    /**
+     * Milliseconds a lock may stay unrenewed before waiting clients break it.
+     */
+    public static final String EXPIRY_KEY = "ahar.lock.expiry.ms";
+    public static final long DEFAULT_EXPIRY = 60000;
+
+    /**
+     * Milliseconds a client waits for the lock of an archive before giving up.
+     */
+    public static final String WAIT_KEY = "ahar.lock.wait.ms";
+    public static final long DEFAULT_WAIT = 600000;
+
+    static final long POLL_INTERVAL = 200;
+
+    private final FileSystem fs;
+    private final Path lockPath;
+    private final String token;
+    private final Thread renewer;
+    private volatile boolean lost = false;
+
+    private ArchiveLock(FileSystem fs, Path lockPath, String token) {
+        this.fs = fs;
+        this.lockPath = lockPath;
+        this.token = token;
+        long renewInterval = Math.max(1, fs.getConf().getLong(EXPIRY_KEY, DEFAULT_EXPIRY) / 3);
+        this.renewer = new Thread(() -> renewEvery(renewInterval), "ahar-lock-renewer " + lockPath);
+        this.renewer.setDaemon(true);
+        this.renewer.start();
+    }
+
+    public static Path pathOf(Path harPath) {
+        return new Path(harPath, "_lock");
+    }
+
+    /**
+     * Waits up to {@link #WAIT_KEY} milliseconds for the lock of the archive.
+     */
+    public static ArchiveLock acquire(FileSystem fs, Path harPath) throws IOException {
+        long deadline = System.currentTimeMillis() + fs.getConf().getLong(WAIT_KEY, DEFAULT_WAIT);
+        Waiter waiter = new Waiter(fs, harPath);
+        ArchiveLock lock;
+        while ((lock = waiter.tryAcquire()) == null) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException(harPath + " is locked by " + waiter.holder + ", gave up waiting");
+            sleep(POLL_INTERVAL, harPath);
+        }
+        return lock;
+    }
+
+    /**
+     * Fails if the lock was broken by another client, which then may change the archive.
+     */
+    public void verify() throws IOException {
+        if (lost)
+            throw lostLock(lockPath.getParent());
+        verify(fs, lockPath.getParent(), token);
+    }
+
+    /**
+     * Fails unless the archive is still locked with the token of the holder, e.g. of the client that started
+     * the task calling this.
+     */
+    public static void verify(FileSystem fs, Path harPath, String token) throws IOException {
+        if (!token.equals(tokenOf(fs, pathOf(harPath))))
+            throw lostLock(harPath);
+    }
+
+    private static IOException lostLock(Path harPath) {
+        return new IOException("Lost the lock of " + harPath + ", it expired and was broken by another client");
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isHeld() {
+        return !lost;
+    }
+
+    /**
+     * Releases the lock, unless another client broke it meanwhile.
+     */
+    @Override
+    public void close() throws IOException {
+        renewer.interrupt();
+        if (!lost && token.equals(tokenOf(fs, lockPath)))
+            fs.delete(lockPath, false);
+        lost = true;
+    }
+
+    private void renewEvery(long interval) {
+        while (!lost) {
+            try {
+                Thread.sleep(interval);
+                if (!token.equals(tokenOf(fs, lockPath))) {
+                    lost = true;
+                    log.error("Lost the lock of " + lockPath.getParent());
+                    return;
+                }
+                fs.setTimes(lockPath, System.currentTimeMillis(), -1);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Unable to renew the lock " + lockPath + ", trying again", e);
+            }
+        }
+    }
+
+    /**
+     * @return token of the lock, or null if the archive is not locked
+     */
+    private static String tokenOf(FileSystem fs, Path lockPath) throws IOException {
+        try {
+            String content = DFSUtils.readFileContent(lockPath, fs);
+            int end = content.indexOf(' ');
+            return end < 0 ? content.trim() : content.substring(0, end);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    static void sleep(long millis, Path harPath) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the lock of " + harPath, e);
+        }
+    }
+
+    /**
+     * Tries to take the lock of an archive and remembers how long the current holder has not renewed it.
+     */
+    static class Waiter {
+        private final FileSystem fs;
+        private final Path harPath;
+        private final Path lockPath;
+        private final long expiry;
+        private String holder;
+        private long observedTime;
+        private long observedSince;
+
+        Waiter(FileSystem fs, Path harPath) {
+            this.fs = fs;
+            this.harPath = harPath;
+            this.lockPath = pathOf(harPath);
+            this.expiry = fs.getConf().getLong(EXPIRY_KEY, DEFAULT_EXPIRY);
+        }
+
+        /**
+         * @return the lock, or null if another client holds it
+         */
+        ArchiveLock tryAcquire() throws IOException {
+            String token = UUID.randomUUID().toString();
+            try (FSDataOutputStream out = fs.create(lockPath, false)) {
+                out.write((token + " " + ManagementFactory.getRuntimeMXBean().getName() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            } catch (FileAlreadyExistsException e) {
+                breakIfExpired();
+                return null;
+            } catch (IOException e) {
+                if (!fs.exists(lockPath))
+                    throw e;
+                breakIfExpired();
+                return null;
+            }
+            log.debug("Locked " + harPath);
+            return new ArchiveLock(fs, lockPath, token);
+        }
+
+        private void breakIfExpired() throws IOException {
+            FileStatus status;
+            try {
+                status = fs.getFileStatus(lockPath);
+            } catch (FileNotFoundException e) {
+                return; // released meanwhile
+            }
+            String content = contentOf(lockPath); // empty locks age as well, their holder may have died
+            if (content == null)
+                return;
+            long now = System.currentTimeMillis();
+            if (!content.equals(holder) || status.getModificationTime() != observedTime) {
+                holder = content;
+                observedTime = status.getModificationTime();
+                observedSince = now;
+                return;
+            }
+            if (now - observedSince < expiry)
+                return;
+
+            // move the lock aside and check that it is the expired one, another waiter may have replaced it
+            Path broken = new Path(harPath, "_lock." + UUID.randomUUID() + ".broken");
+            if (!fs.rename(lockPath, broken))
+                return;
+            if (holder.equals(contentOf(broken))) {
+                log.warn("Broke the lock of " + harPath + " held by " + (holder.isEmpty() ? "a client that never wrote it"
+                        : holder) + ", it was not renewed for "
+                        + (now - observedSince) + " ms");
+                fs.delete(broken, false);
+            } else if (!fs.rename(broken, lockPath)) {
+                fs.delete(broken, false);
+            }
+            holder = null;
+        }
+
+        /**
+         * @return content of the lock, empty if its holder died before writing it or is still writing it, or
+         * null if the lock was released meanwhile
+         */
+        private String contentOf(Path path) throws IOException {
+            try {
+                return DFSUtils.readFileContent(path, fs).trim();
+            } catch (IOException e) {
+                if (!fs.exists(path))
+                    return null;
+                log.debug("Unable to read the lock " + path + ", it is still being written", e);
+                return ""; // e.g. the block length of a lock left open by a dead holder is unknown
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package de.tuberlin.cit.storageassistant;
 
 import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import de.tuberlin.cit.storageassistant.part.ArchiveCompactor;
+import de.tuberlin.cit.storageassistant.part.DistributedAppend;
 import de.tuberlin.cit.storageassistant.part.PartFileManager;
+import de.tuberlin.cit.storageassistant.read.ArchiveExtractor;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -10,12 +15,29 @@ import org.apache.hadoop.tools.HadoopArchives;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 
 
 public class ArchiveManager {
     private final static Logger log = Logger.getLogger(ArchiveManager.class);
+
+    /**
+     * Number of manifest paths that are added to the archive and committed together.
+     */
+    public static final String MANIFEST_BATCH_KEY = "ahar.manifest.batch.paths";
+    public static final int DEFAULT_MANIFEST_BATCH = 10000;
+
+    /**
+     * Queue appends and let one client commit the appends of all clients waiting for the archive together.
+     */
+    public static final String QUEUE_APPENDS_KEY = "ahar.append.queue";
+    public static final boolean DEFAULT_QUEUE_APPENDS = false;
+
     private FileSystem fs;
     private HadoopArchives hadoopArchives;
     private Configuration conf;
@@ -83,15 +105,177 @@ public class ArchiveManager {
     }
 
     /**
+     * Appends the files to the part files and commits the new index through a {@link Journal}. A change of
+     * the archive that was interrupted before is recovered first, and a failing append is rolled back.
+     *
+     * The archive is locked by an {@link ArchiveLock} meanwhile, so appends of other clients wait. With
+     * {@link #QUEUE_APPENDS_KEY} set, the append is queued and committed together with the appends of other
+     * clients waiting for the archive, see {@link AppendQueue}.
+     *
      * @param srcPaths
      * @param harPath
      * @throws IOException
      */
     public void addFilesToArchive(Path[] srcPaths, Path harPath) throws IOException {
-        Index index = new Index(harPath, fs);
-        PartFileManager partFileManager = new PartFileManager(fs, harPath);
-        partFileManager.addToPartFilesAndUpdateIndex(srcPaths, index);
-        partFileManager.writeAllToFile();
-        index.writeToFile();
+        if (conf.getBoolean(QUEUE_APPENDS_KEY, DEFAULT_QUEUE_APPENDS)) {
+            new AppendQueue(this, fs, harPath).add(srcPaths);
+            return;
+        }
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, harPath)) {
+            addFilesLocked(srcPaths, harPath, lock);
+        }
+    }
+
+    void addFilesLocked(Path[] srcPaths, Path harPath, ArchiveLock lock) throws IOException {
+        Journal.recover(fs, harPath, lock);
+        Journal journal = Journal.begin(fs, harPath, lock);
+        try {
+            Index index = Index.loadPartially(harPath, fs);
+            PartFileManager partFileManager = new PartFileManager(fs, harPath);
+            partFileManager.addToPartFilesAndUpdateIndex(srcPaths, index);
+            partFileManager.writeAllToFile();
+            lock.verify();
+            index.writeToFile(journal);
+        } catch (IOException | RuntimeException e) {
+            if (lock.isHeld()) // otherwise the client that broke the lock recovers
+                journal.abort(e);
+            throw e;
+        }
+        journal.finish();
+    }
+
+    /**
+     * Locks the archive and keeps it open for appends until the returned daemon is closed. Paths added to the
+     * daemon are committed in groups, see {@link AppendDaemon}.
+     *
+     * @param harPath
+     * @return the started daemon
+     * @throws IOException
+     */
+    public AppendDaemon startAppendDaemon(Path harPath) throws IOException {
+        AppendDaemon daemon = new AppendDaemon(fs, harPath);
+        daemon.start();
+        return daemon;
+    }
+
+    /**
+     * Locks the archive and returns a writer that adds files from streams or buffers, with the metadata given
+     * by the caller instead of a source file, see {@link ArchiveWriter}. Closing the writer commits the
+     * written files and releases the archive.
+     *
+     * @param harPath
+     * @return the opened writer
+     * @throws IOException
+     */
+    public ArchiveWriter openArchiveWriter(Path harPath) throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(fs, harPath);
+        writer.open();
+        return writer;
+    }
+
+    /**
+     * Like {@link #addFilesToArchive(Path[], Path)}, but the files are copied by a MapReduce job, each map
+     * task into a new part file, and the index is updated by its reducer. Suits large appends that would be
+     * limited by the network link of a single client.
+     *
+     * @param srcPaths
+     * @param harPath
+     * @throws IOException
+     */
+    public void addFilesToArchiveDistributed(Path[] srcPaths, Path harPath) throws IOException {
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, harPath)) {
+            new DistributedAppend(fs, harPath, lock).addFiles(srcPaths);
+        }
+    }
+
+    /**
+     * Repacks the live files of the archive into as few densely filled part files as they need and removes
+     * the old part files. See {@link ArchiveCompactor}.
+     *
+     * @param harPath
+     * @return number of bytes the part files shrank by
+     * @throws IOException
+     */
+    public long compactArchive(Path harPath) throws IOException {
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, harPath)) {
+            return new ArchiveCompactor(fs, harPath, lock).compact();
+        }
+    }
+
+    /**
+     * Extracts all files and directories of the archive below the destination, reading each part file once
+     * from front to back. See {@link ArchiveExtractor}.
+     *
+     * @param harPath
+     * @param destination
+     * @return number of extracted files
+     * @throws IOException
+     */
+    public long extractArchive(Path harPath, Path destination) throws IOException {
+        return new ArchiveExtractor(harPath, conf).extractTo(destination);
+    }
+
+    /**
+     * Adds the paths listed in a manifest, one file or directory per line, to the archive. The manifest is
+     * read as a stream and its paths are added in batches of {@link #MANIFEST_BATCH_KEY} paths. Each batch
+     * is written to the part files and the index before the next one is read, so memory use does not grow
+     * with the length of the manifest and a failing batch leaves all previous batches in the archive. Empty
+     * lines and lines starting with # are skipped. Paths that are archived already are not added again.
+     *
+     * @param manifestPath manifest on any file system Hadoop can read, e.g. file:///tmp/paths.txt
+     * @param harPath
+     * @return number of paths read from the manifest
+     * @throws IOException
+     */
+    public long addFilesFromManifest(Path manifestPath, Path harPath) throws IOException {
+        int batchSize = Math.max(1, conf.getInt(MANIFEST_BATCH_KEY, DEFAULT_MANIFEST_BATCH));
+        FileSystem manifestFs = manifestPath.getFileSystem(conf);
+        long manifestLength = manifestFs.getFileStatus(manifestPath).getLen();
+        long startTime = System.currentTimeMillis();
+
+        List<Path> batch = new ArrayList<>(batchSize);
+        long paths = 0;
+        int batches = 0;
+        try (CountingInputStream manifestStream = new CountingInputStream(manifestFs.open(manifestPath));
+             BufferedReader manifest = new BufferedReader(
+                     new InputStreamReader(manifestStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = manifest.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                batch.add(new Path(line));
+                if (batch.size() < batchSize)
+                    continue;
+
+                paths += commitBatch(batch, harPath, ++batches);
+                logProgress(batches, paths, manifestStream.getByteCount(), manifestLength, startTime);
+            }
+            if (!batch.isEmpty()) {
+                paths += commitBatch(batch, harPath, ++batches);
+                logProgress(batches, paths, manifestLength, manifestLength, startTime);
+            }
+        }
+        log.info("Added " + paths + " paths from " + manifestPath + " to " + harPath + " in " + batches
+                + " batches");
+        return paths;
+    }
+
+    private int commitBatch(List<Path> batch, Path harPath, int batchNumber) throws IOException {
+        try {
+            addFilesToArchive(batch.toArray(new Path[batch.size()]), harPath);
+        } catch (IOException e) {
+            throw new IOException("Unable to add batch " + batchNumber + " starting with " + batch.get(0)
+                    + ", all previous batches were added", e);
+        }
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+
+    private void logProgress(int batches, long paths, long bytesRead, long manifestLength, long startTime) {
+        long percent = manifestLength == 0 ? 100 : Math.min(100, bytesRead * 100 / manifestLength);
+        log.info(String.format("Committed batch %d, %d manifest paths so far, %d%% of the manifest read after %.1f s",
+                batches, paths, percent, (System.currentTimeMillis() - startTime) / 1000.0));
     }
-}
\ No newline at end of file
+}
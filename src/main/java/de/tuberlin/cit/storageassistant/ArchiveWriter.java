@@ -0,0 +1,214 @@
+package de.tuberlin.cit.storageassistant;
+
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.IndexDirectory;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import de.tuberlin.cit.storageassistant.part.PartFileManager;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes files into an archive straight from streams or buffers, without writing them to the file system
+ * first. Their content is appended to the part files while it is written, and their index entries are built
+ * from the metadata given with them, so a producer of many small files saves a source file, and with it a
+ * NameNode object, per file.
+ *
+ * The writer holds the {@link ArchiveLock} until it is closed. Written files become visible with
+ * {@link #commit()}, which closes the append streams and commits the index through a {@link Journal}, or
+ * with {@link #close()}, which commits as well. If a write or a commit fails, all files written since the
+ * last commit are rolled back and the writer can go on with the next file.
+ *
+ * Files are placed like appended files, see {@link PartFileManager#PLACEMENT_STRATEGY_KEY}. Parent
+ * directories missing from the index are added with the owner and group of the file.
+ */
+public class ArchiveWriter implements Closeable {
+    private final static Logger log = Logger.getLogger(ArchiveWriter.class);
+
+    private final FileSystem fs;
+    private final Path harPath;
+
+    private ArchiveLock lock;
+    private Index index;
+    private PartFileManager partFileManager;
+    private Journal journal; // of the files written since the last commit, null if there are none
+    private int uncommittedFiles = 0;
+
+    private String owner;
+    private String group;
+    private FsPermission filePermission;
+    private FsPermission directoryPermission;
+
+    public ArchiveWriter(FileSystem fs, Path harPath) {
+        this.fs = fs;
+        this.harPath = harPath;
+    }
+
+    /**
+     * Locks the archive, recovers an interrupted change and loads index and part files.
+     */
+    public void open() throws IOException {
+        lock = ArchiveLock.acquire(fs, harPath);
+        try {
+            Journal.recover(fs, harPath, lock);
+            load();
+            owner = UserGroupInformation.getCurrentUser().getShortUserName();
+            group = fs.getFileStatus(harPath).getGroup(); // as HDFS does for new files
+            FsPermission umask = FsPermission.getUMask(fs.getConf());
+            filePermission = FsPermission.getFileDefault().applyUMask(umask);
+            directoryPermission = FsPermission.getDirDefault().applyUMask(umask);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        index = Index.loadPartially(harPath, fs);
+        partFileManager = new PartFileManager(fs, harPath);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer as a file owned by the current user, modified now. The
+     * position of the buffer is not changed.
+     *
+     * @param path absolute path of the file in the archive
+     */
+    public void write(Path path, ByteBuffer content) throws IOException {
+        InputStream stream;
+        if (content.hasArray()) {
+            stream = new ByteArrayInputStream(content.array(), content.arrayOffset() + content.position(),
+                    content.remaining());
+        } else {
+            byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            stream = new ByteArrayInputStream(bytes);
+        }
+        write(path, stream, content.remaining());
+    }
+
+    /**
+     * Writes the next {@code length} bytes of the stream as a file owned by the current user, modified now.
+     * The stream is not closed.
+     *
+     * @param path absolute path of the file in the archive
+     */
+    public void write(Path path, InputStream content, long length) throws IOException {
+        write(new FileStatus(length, false, 0, 0, System.currentTimeMillis(), 0, filePermission, owner, group,
+                path), content);
+    }
+
+    /**
+     * Writes the next bytes of the stream as a file, as many as the metadata gives. The stream is not closed
+     * and may hold further files.
+     *
+     * @param metadata absolute path of the file in the archive, length, modification time, permission, owner
+     *                 and group
+     * @throws FileAlreadyExistsException if the archive holds the path already, nothing is rolled back then
+     * @throws IOException if the stream ends before the file is complete, the written files are rolled back
+     */
+    public synchronized void write(FileStatus metadata, InputStream content) throws IOException {
+        Path path = Path.getPathWithoutSchemeAndAuthority(metadata.getPath());
+        if (metadata.isDirectory() || !path.isAbsolute() || path.isRoot())
+            throw new IllegalArgumentException(metadata.getPath() + " is no absolute path of a file");
+        if (index == null)
+            throw new IOException("The writer of " + harPath + " is closed");
+        if (index.containsEntryForHash(DFSUtils.getHarHash(path.toString())))
+            throw new FileAlreadyExistsException(path + " is in " + harPath + " already");
+
+        try {
+            if (journal == null)
+                journal = Journal.begin(fs, harPath, lock); // before the first byte is appended
+            index.addEntry(partFileManager.appendStreamed(metadata, content));
+            addParentDirectories(path, metadata);
+            uncommittedFiles++;
+        } catch (IOException | RuntimeException e) {
+            rollBack(e);
+            throw e;
+        }
+    }
+
+    private void addParentDirectories(Path path, FileStatus metadata) throws IOException {
+        for (Path current = path; !current.isRoot(); current = current.getParent()) {
+            IndexDirectory parent = new IndexDirectory(new FileStatus(0, true, 0, 0,
+                    metadata.getModificationTime(), 0, directoryPermission, metadata.getOwner(),
+                    metadata.getGroup(), current.getParent()));
+            parent.addChild(current.getName());
+            index.addEntry(parent); // merged into the entry of a directory that exists already
+        }
+    }
+
+    /**
+     * Makes the files written since the last commit visible to readers of the archive.
+     */
+    public synchronized void commit() throws IOException {
+        if (journal == null)
+            return;
+        long startTime = System.currentTimeMillis();
+        try {
+            partFileManager.closeStreams();
+            lock.verify();
+            index.writeToFile(journal);
+            journal.finish();
+        } catch (IOException | RuntimeException e) {
+            rollBack(e);
+            throw e;
+        }
+        log.info("Committed " + uncommittedFiles + " written files to " + harPath + " in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        journal = null;
+        uncommittedFiles = 0;
+    }
+
+    /**
+     * Undoes the files written since the last commit and loads index and part files again, which hold them.
+     * A writer that lost its lock or cannot load the archive again is closed.
+     */
+    private void rollBack(Exception failure) {
+        log.error("Rolling back " + uncommittedFiles + " files written to " + harPath, failure);
+        try {
+            partFileManager.closeStreams(); // part files can only be truncated once they are closed
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+        if (journal != null && lock.isHeld()) // otherwise the client that broke the lock recovers
+            journal.abort(failure);
+        journal = null;
+        uncommittedFiles = 0;
+        index = null;
+        if (!lock.isHeld())
+            return;
+        try {
+            load();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Commits the files written since the last commit and releases the archive.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (lock == null)
+            return;
+        try {
+            if (index != null)
+                commit();
+        } finally {
+            index = null;
+            lock.close();
+            lock = null;
+        }
+    }
+}
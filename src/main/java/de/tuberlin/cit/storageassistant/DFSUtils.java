@@ -3,6 +3,7 @@ package de.tuberlin.cit.storageassistant;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 
 import java.io.IOException;
 import java.net.URI;
@@ -42,10 +43,10 @@ public abstract class DFSUtils {
      * @parm byteRange bytes supposed to be read. if null entire file is read
      */
     public static String readFileContent(Path path, FileSystem fs) throws IOException {
-        FSDataInputStream in = fs.open(path);
-        byte[] b = new byte[in.available()];
-        in.readFully(b);
-        in.close();
+        byte[] b = new byte[(int) fs.getFileStatus(path).getLen()];
+        try (FSDataInputStream in = fs.open(path)) {
+            in.readFully(b);
+        }
         return new String(b);
     }
 
@@ -115,14 +116,37 @@ public abstract class DFSUtils {
         return path.toString();
     }
 
+    /**
+     * Moves source to target and replaces target if it already exists. On HDFS this is a single atomic rename.
+     *
+     * @param fs
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    public static void replaceFile(FileSystem fs, Path source, Path target) throws IOException {
+        if (fs instanceof DistributedFileSystem) {
+            ((DistributedFileSystem) fs).rename(source, target, Options.Rename.OVERWRITE);
+        } else {
+            fs.delete(target, false);
+            if (!fs.rename(source, target))
+                throw new IOException("Unable to rename " + source + " to " + target);
+        }
+    }
+
     public static Integer getHarHash(FileStatus fileStatus) {
-        String path = fileStatus.getPath().toString();
-        return getHarHash(path);
+        return HarFileSystem.getHarHash(Path.getPathWithoutSchemeAndAuthority(fileStatus.getPath()));
     }
 
     public static Integer getHarHash(String path) {
-        String cleanedPath = path.replaceFirst("hdfs:\\/\\/.+:\\d{4,6}", "");
-        return HarFileSystem.getHarHash(new Path(cleanedPath));
+        return HarFileSystem.getHarHash(Path.getPathWithoutSchemeAndAuthority(new Path(path)));
+    }
+
+    /**
+     * @return the path as it is stored in the index, without scheme and authority of its file system
+     */
+    public static String getPathRelativeToRootDirectory(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path).toString();
     }
 
     /**
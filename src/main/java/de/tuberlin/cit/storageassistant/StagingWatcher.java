@@ -0,0 +1,377 @@
+package de.tuberlin.cit.storageassistant;
+
+import de.tuberlin.cit.storageassistant.read.ArchiveReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DFSInotifyEventInputStream;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.inotify.Event;
+import org.apache.hadoop.hdfs.inotify.EventBatch;
+import org.apache.hadoop.hdfs.inotify.MissingEventsException;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Archives the files that arrive in a staging directory, continuously instead of in bursts. Complete files
+ * are handed to an {@link AppendDaemon}, which commits them in groups, and with {@link #DELETE_SOURCES_KEY}
+ * set they are deleted once committed, so the staging directory does not grow.
+ *
+ * New files are found through the inotify event stream of HDFS, which reports a file as soon as its writer
+ * closed it. Reading the stream requires superuser rights; without them, on other file systems, or if
+ * {@link #INOTIFY_KEY} is unset, the staging directory is listed every {@link #INTERVAL_KEY} milliseconds
+ * instead. Listed files count as complete once HDFS reports them closed, on other file systems once they
+ * were not modified for {@link #QUIET_PERIOD_KEY} milliseconds. Files and directories whose names start with
+ * _ or . are skipped, so producers can write to such names and rename the file when it is complete.
+ *
+ * At most {@link AppendDaemon#COMMIT_PATHS_KEY} files are waiting for a commit at a time. A file whose commit
+ * failed is handed over again after a growing delay, committed on its own so it cannot fail other files, at
+ * most {@link #RETRIES_KEY} times. Then it is moved into the _quarantine directory of the staging directory.
+ *
+ * A file is only deleted, or remembered as archived, once the archive holds an entry with its length and
+ * modification time. A file whose path is archived with other content already, e.g. a new version under a
+ * reused name, is moved into _quarantine as well instead of being deleted.
+ */
+public class StagingWatcher implements Closeable {
+    private final static Logger log = Logger.getLogger(StagingWatcher.class);
+
+    /**
+     * Milliseconds between two listings of the staging directory, also the longest wait for inotify events.
+     */
+    public static final String INTERVAL_KEY = "ahar.watch.interval.ms";
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    /**
+     * Milliseconds a listed file must be unchanged to count as complete, on file systems that cannot tell
+     * whether a file is still open.
+     */
+    public static final String QUIET_PERIOD_KEY = "ahar.watch.quiet.ms";
+    public static final long DEFAULT_QUIET_PERIOD = 30000;
+
+    /**
+     * Delete files from the staging directory once they are committed to the archive.
+     */
+    public static final String DELETE_SOURCES_KEY = "ahar.watch.delete.sources";
+    public static final boolean DEFAULT_DELETE_SOURCES = false;
+
+    /**
+     * Find new files through the HDFS inotify event stream if it can be read.
+     */
+    public static final String INOTIFY_KEY = "ahar.watch.inotify";
+    public static final boolean DEFAULT_INOTIFY = true;
+
+    /**
+     * Number of times a file whose commit failed is handed over again before it is quarantined.
+     */
+    public static final String RETRIES_KEY = "ahar.watch.retries";
+    public static final int DEFAULT_RETRIES = 3;
+
+    private static final String QUARANTINE = "_quarantine";
+
+    private final AppendDaemon daemon;
+    private final Configuration conf;
+    private final FileSystem fs;
+    private final Path stagingPath;
+    private final String stagingPrefix;
+    private final long interval;
+    private final long quietPeriod;
+    private final boolean deleteSources;
+    private final boolean useInotify;
+    private final int maxRetries;
+
+    private final int maxWaitingFiles;
+    private final Semaphore waitingFiles;
+    private final Set<Path> submitted = ConcurrentHashMap.newKeySet();
+    private final Set<Path> archived = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Long> retryAt = new ConcurrentHashMap<>();
+    private final Map<Path, Integer> failures = new ConcurrentHashMap<>();
+    private ArchiveReader archiveReader; // used by the cleaner only
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = false;
+    private volatile boolean closed = false;
+    private volatile boolean listing = true;
+
+    public StagingWatcher(AppendDaemon daemon, Path stagingPath, Configuration conf) throws IOException {
+        this.daemon = daemon;
+        this.conf = conf;
+        this.fs = stagingPath.getFileSystem(conf);
+        this.stagingPath = fs.makeQualified(stagingPath);
+        this.stagingPrefix = Path.getPathWithoutSchemeAndAuthority(this.stagingPath).toString();
+        this.interval = Math.max(1, conf.getLong(INTERVAL_KEY, DEFAULT_INTERVAL));
+        this.quietPeriod = conf.getLong(QUIET_PERIOD_KEY, DEFAULT_QUIET_PERIOD);
+        this.deleteSources = conf.getBoolean(DELETE_SOURCES_KEY, DEFAULT_DELETE_SOURCES);
+        this.useInotify = conf.getBoolean(INOTIFY_KEY, DEFAULT_INOTIFY);
+        this.maxRetries = Math.max(0, conf.getInt(RETRIES_KEY, DEFAULT_RETRIES));
+        this.maxWaitingFiles = Math.max(1, conf.getInt(AppendDaemon.COMMIT_PATHS_KEY,
+                AppendDaemon.DEFAULT_COMMIT_PATHS));
+        this.waitingFiles = new Semaphore(maxWaitingFiles);
+    }
+
+    /**
+     * Watches the staging directory until {@link #close()} is called, then waits for the files handed over
+     * to be committed.
+     */
+    public void run() throws IOException {
+        running = true;
+        try {
+            DFSInotifyEventInputStream events = openEventStream();
+            listing = events == null;
+            log.info("Watching " + stagingPath + (events == null ? " by listing it every " + interval + " ms"
+                    : " through inotify events"));
+            scan(); // files that arrived before the watch started
+            while (!closed) {
+                if (events == null) {
+                    sleep(interval);
+                    scan();
+                } else {
+                    try {
+                        EventBatch batch = events.poll(interval, TimeUnit.MILLISECONDS);
+                        if (batch != null)
+                            handle(batch);
+                    } catch (MissingEventsException e) {
+                        log.warn("Missed inotify events of " + stagingPath + ", listing it", e);
+                        scan();
+                    } catch (IOException e) {
+                        log.warn("Unable to read inotify events, listing " + stagingPath + " from now on", e);
+                        events = null;
+                        listing = true;
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (Map.Entry<Path, Long> retry : retryAt.entrySet()) {
+                    if (retry.getValue() <= now && retryAt.remove(retry.getKey()) != null)
+                        submit(retry.getKey(), true);
+                }
+            }
+            waitingFiles.acquire(maxWaitingFiles); // all handed over files are done
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while watching " + stagingPath, e);
+        } finally {
+            cleaner.shutdown();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * @return the event stream, or null if it cannot be read and the staging directory has to be listed
+     */
+    private DFSInotifyEventInputStream openEventStream() {
+        if (!useInotify || !(fs instanceof DistributedFileSystem))
+            return null;
+        try {
+            return new HdfsAdmin(fs.getUri(), fs.getConf()).getInotifyEventStream();
+        } catch (IOException e) {
+            log.info("Unable to read inotify events, e.g. for lack of superuser rights: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void handle(EventBatch batch) throws IOException, InterruptedException {
+        for (Event event : batch.getEvents()) {
+            if (event.getEventType() == Event.EventType.CLOSE)
+                consider(((Event.CloseEvent) event).getPath(), true);
+            else if (event.getEventType() == Event.EventType.RENAME)
+                consider(((Event.RenameEvent) event).getDstPath(), false);
+        }
+    }
+
+    /**
+     * @param closed whether the path is a file known to be closed
+     */
+    private void consider(String path, boolean closed) throws IOException, InterruptedException {
+        if (!isStaged(path))
+            return;
+        if (closed) {
+            submit(fs.makeQualified(new Path(path)), false);
+            return;
+        }
+        try {
+            if (fs.getFileStatus(new Path(path)).isDirectory())
+                scan(new Path(path), new HashSet<>());
+            else if (isComplete(fs.getFileStatus(new Path(path))))
+                submit(fs.makeQualified(new Path(path)), false);
+        } catch (FileNotFoundException e) {
+            log.debug(path + " was moved away again");
+        }
+    }
+
+    /**
+     * @return whether the path lies below the staging directory and none of its names there is hidden
+     */
+    private boolean isStaged(String path) {
+        if (!path.startsWith(stagingPrefix + "/"))
+            return false;
+        for (String name : path.substring(stagingPrefix.length() + 1).split("/")) {
+            if (name.startsWith("_") || name.startsWith("."))
+                return false;
+        }
+        return true;
+    }
+
+    private void scan() throws IOException, InterruptedException {
+        Set<Path> listed = new HashSet<>();
+        scan(stagingPath, listed);
+        archived.retainAll(listed); // deleted or moved away, no need to remember them
+    }
+
+    private void scan(Path directory, Set<Path> listed) throws IOException, InterruptedException {
+        RemoteIterator<LocatedFileStatus> files;
+        try {
+            files = fs.listFiles(directory, true);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        while (files.hasNext()) {
+            LocatedFileStatus file = files.next();
+            Path path = fs.makeQualified(file.getPath());
+            listed.add(path);
+            if (!archived.contains(path) && !submitted.contains(path)
+                    && isStaged(Path.getPathWithoutSchemeAndAuthority(path).toString()) && isComplete(file))
+                submit(path, false);
+        }
+    }
+
+    private boolean isComplete(FileStatus file) throws IOException {
+        if (fs instanceof DistributedFileSystem)
+            return ((DistributedFileSystem) fs).isFileClosed(file.getPath());
+        return System.currentTimeMillis() - file.getModificationTime() >= quietPeriod;
+    }
+
+    /**
+     * Hands the file to the daemon, waiting while too many files are waiting for a commit already. Files
+     * waiting to be retried are only handed over by the retry.
+     *
+     * @param retried commit the file on its own, its last commit failed
+     */
+    private void submit(Path file, boolean retried) throws InterruptedException {
+        if (retryAt.containsKey(file) || !submitted.add(file))
+            return;
+        waitingFiles.acquire();
+        daemon.add(file, retried).whenCompleteAsync((ignored, failure) -> {
+            try {
+                if (failure == null || failure instanceof AppendDaemon.AlreadyArchivedException)
+                    archived(file);
+                else
+                    failed(file, failure);
+            } catch (IOException e) {
+                log.warn("Unable to clean up " + file + " after archiving it", e);
+            } finally {
+                submitted.remove(file);
+                waitingFiles.release();
+            }
+        }, cleaner);
+    }
+
+    /**
+     * Deletes or remembers the file once the archive holds it. If the archived entry belongs to other
+     * content, the file is quarantined. Only listings need to remember the archived files they must not hand
+     * over again.
+     */
+    private void archived(Path file) throws IOException {
+        failures.remove(file);
+        FileStatus current;
+        try {
+            current = fs.getFileStatus(file);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        FileStatus entry = archivedStatus(file);
+        if (entry == null || entry.getLen() != current.getLen()
+                || entry.getModificationTime() != current.getModificationTime()) {
+            quarantine(file, "the archive holds other content under its path");
+        } else if (deleteSources) {
+            fs.delete(file, false);
+        } else if (listing) {
+            archived.add(file);
+        }
+    }
+
+    /**
+     * @return the entry of the file in the committed index, or null if there is none
+     */
+    private FileStatus archivedStatus(Path file) throws IOException {
+        if (archiveReader == null || !archiveReader.isCurrent())
+            archiveReader = ArchiveReader.open(daemon.getHarPath(), conf);
+        try {
+            return archiveReader.stat(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Schedules the file to be handed over again, waiting twice as long after every failure, or quarantines
+     * it once it failed too often.
+     */
+    private void failed(Path file, Throwable failure) throws IOException {
+        if (!fs.exists(file)) {
+            failures.remove(file);
+            return;
+        }
+        int attempts = failures.merge(file, 1, Integer::sum);
+        if (attempts > maxRetries) {
+            failures.remove(file);
+            log.error("Unable to archive " + file + " after " + attempts + " attempts", failure);
+            quarantine(file, "its commit failed " + attempts + " times");
+            return;
+        }
+        long delay = interval << Math.min(attempts - 1, 16);
+        log.warn("Unable to archive " + file + ", trying again on its own in " + delay + " ms", failure);
+        retryAt.put(file, System.currentTimeMillis() + delay);
+    }
+
+    /**
+     * Moves the file below _quarantine in the staging directory, which is not watched.
+     */
+    private void quarantine(Path file, String reason) throws IOException {
+        String relative = Path.getPathWithoutSchemeAndAuthority(file).toString().substring(stagingPrefix.length());
+        Path target = new Path(stagingPath, QUARANTINE + relative);
+        if (fs.exists(target))
+            target = target.suffix("." + System.currentTimeMillis());
+        fs.mkdirs(target.getParent());
+        if (fs.rename(file, target))
+            log.warn("Moved " + file + " to " + target + " because " + reason);
+        else
+            log.error("Unable to move " + file + " to " + target + ", it is kept because " + reason);
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!closed && System.currentTimeMillis() < deadline)
+            Thread.sleep(Math.min(100, deadline - System.currentTimeMillis() + 1));
+    }
+
+    /**
+     * Stops watching and waits until {@link #run()} returned, i.e. every file handed over is committed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (!running)
+            return;
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping to watch " + stagingPath, e);
+        }
+    }
+}
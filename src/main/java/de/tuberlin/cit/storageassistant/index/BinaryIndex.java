@@ -0,0 +1,384 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import de.tuberlin.cit.storageassistant.DFSUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary copy of an archive's _index, stored next to it as _index.bin. The text _index stays the
+ * index HarFileSystem reads; the binary index only lets our own readers load an archive without parsing text
+ * and with far less memory than parsed entries take.
+ *
+ * Layout, all numbers big endian:
+ * <pre>
+ * int  magic "AHIB"
+ * int  version
+ * long length of the _index the binary index was built from
+ * long modification time of that _index
+ * int  number of strings, then per string: int length, UTF-8 bytes (part names, permissions, owners, groups)
+ * int  number of attributes, then per attribute: int permissions, int owner, int group (string numbers)
+ * int  number of entries, then per entry in ascending har hash order, 40 bytes:
+ *      int har hash, int path number, int part (string number, -1 for directories),
+ *      long offset (for directories the position of their children), long length (number of children),
+ *      long modification time, int attributes
+ * int  number of path blocks, int[] position of every block, int length of the path data, path data
+ * int  length of the children data, children data
+ * </pre>
+ * Paths are numbered in sorted order and front coded in blocks of {@value #PATH_BLOCK_SIZE}: the first path
+ * of a block is stored as a whole, every following one as the length of the prefix it shares with the path
+ * before it and the rest. Children of directories are stored as lists of names. Lengths within path and
+ * children data are variable length integers.
+ *
+ * A binary index is only used while the _index still has the recorded length and modification time, so an
+ * archive changed by a tool that does not know about _index.bin falls back to the text _index.
+ */
+public class BinaryIndex {
+    private final static Logger log = Logger.getLogger(BinaryIndex.class);
+
+    private static final int MAGIC = 0x41484942;
+    private static final int VERSION = 1;
+    private static final int PATH_BLOCK_SIZE = 16;
+    private static final int ENTRY_BYTES = 40;
+
+    private final String[] strings;
+    private final int[] attributes;
+    private final ByteBuffer entries;
+    private final int count;
+    private final int[] pathBlocks;
+    private final ByteBuffer paths;
+    private final ByteBuffer children;
+
+    private BinaryIndex(ByteBuffer buffer) {
+        buffer.position(24);
+        strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        attributes = new int[buffer.getInt() * 3];
+        for (int i = 0; i < attributes.length; i++)
+            attributes[i] = buffer.getInt();
+
+        count = buffer.getInt();
+        entries = slice(buffer, count * ENTRY_BYTES);
+        pathBlocks = new int[buffer.getInt()];
+        for (int i = 0; i < pathBlocks.length; i++)
+            pathBlocks[i] = buffer.getInt();
+        paths = slice(buffer, buffer.getInt());
+        children = slice(buffer, buffer.getInt());
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    public static Path pathOf(Path harPath) {
+        return new Path(harPath, "_index.bin");
+    }
+
+    /**
+     * Reads the binary index of an archive completely into memory.
+     *
+     * @param indexStatus status of the _index the binary index has to match
+     * @return the binary index, or null if the archive has none or it does not match the _index
+     */
+    public static BinaryIndex read(FileSystem fs, Path harPath, FileStatus indexStatus) throws IOException {
+        Path path = pathOf(harPath);
+        byte[] bytes;
+        try (FSDataInputStream in = fs.open(path)) {
+            long length = fs.getFileStatus(path).getLen();
+            if (length < 24 || length > Integer.MAX_VALUE)
+                return null;
+            bytes = new byte[(int) length];
+            in.readFully(bytes);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            log.warn(path + " is no binary index of version " + VERSION + ", it is ignored");
+            return null;
+        }
+        if (buffer.getLong(8) != indexStatus.getLen() || buffer.getLong(16) != indexStatus.getModificationTime()) {
+            log.info(path + " does not match the current _index, it is ignored");
+            return null;
+        }
+        return new BinaryIndex(buffer);
+    }
+
+    /**
+     * Builds the binary index from the current _index of the archive with one sequential read, and replaces
+     * the previous binary index. Nothing is written if the _index changes meanwhile.
+     *
+     * An _index written by us is in har hash order, so its entries are encoded while they are read and only
+     * their paths are kept until the end, to be numbered in sorted order. The _index of another tool may not
+     * be; then it is read a second time, its entries are sorted in memory and encoded afterwards.
+     */
+    public static void write(FileSystem fs, Path harPath) throws IOException {
+        long startTime = System.currentTimeMillis();
+        FileStatus indexStatus = fs.getFileStatus(new Path(harPath, "_index"));
+        Writer writer = new Writer();
+        boolean hashOrdered = true;
+        try (IndexReader indexReader = new IndexReader(fs.open(indexStatus.getPath()))) {
+            IndexEntry entry;
+            while (hashOrdered && (entry = indexReader.next()) != null)
+                hashOrdered = writer.add(entry);
+        }
+        if (!hashOrdered) {
+            log.info("The _index of " + harPath + " is not in har hash order, sorting its entries");
+            writer = writeSorted(fs, indexStatus);
+        }
+
+        Path path = pathOf(harPath);
+        Path newPath = new Path(harPath, "_index.bin.tmp");
+        try (FSDataOutputStream out = fs.create(newPath)) {
+            writer.write(out, indexStatus);
+        }
+        FileStatus current = fs.getFileStatus(indexStatus.getPath());
+        if (current.getLen() != indexStatus.getLen()
+                || current.getModificationTime() != indexStatus.getModificationTime()) {
+            log.info("The _index of " + harPath + " changed while its binary index was written");
+            fs.delete(newPath, false);
+            return;
+        }
+        DFSUtils.replaceFile(fs, newPath, path);
+        log.info("Wrote binary index of " + harPath + " with " + writer.paths.size() + " entries and "
+                + fs.getFileStatus(path).getLen() + " bytes in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private static Writer writeSorted(FileSystem fs, FileStatus indexStatus) throws IOException {
+        List<IndexEntry> indexEntries = new ArrayList<>();
+        try (IndexReader indexReader = new IndexReader(fs.open(indexStatus.getPath()))) {
+            IndexEntry entry;
+            while ((entry = indexReader.next()) != null)
+                indexEntries.add(entry);
+        }
+        indexEntries.sort(null);
+        Writer writer = new Writer();
+        for (IndexEntry entry : indexEntries)
+            writer.add(entry);
+        return writer;
+    }
+
+    /**
+     * Encodes entries in har hash order as they are added and collects the string and attribute tables. The
+     * paths are numbered and front coded once all entries were added.
+     */
+    private static class Writer {
+        private final Map<String, Integer> stringNumbers = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<List<Integer>, Integer> attributeNumbers = new HashMap<>();
+        private final List<List<Integer>> attributes = new ArrayList<>();
+        private final List<String> paths = new ArrayList<>();
+        private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        private final ByteArrayOutputStream children = new ByteArrayOutputStream();
+        private int lastHarHash = Integer.MIN_VALUE;
+
+        /**
+         * @return false if the entry was not added because its har hash is lower than the one added before
+         */
+        boolean add(IndexEntry entry) throws IOException {
+            if (entry.getHarHash() < lastHarHash)
+                return false;
+            lastHarHash = entry.getHarHash();
+            entryOut.writeInt(entry.getHarHash());
+            entryOut.writeInt(0); // path number, known once all paths were added
+            if (entry.isFile()) {
+                IndexFile file = (IndexFile) entry;
+                entryOut.writeInt(stringNumber(file.getPart()));
+                entryOut.writeLong(file.getOffset());
+                entryOut.writeLong(file.getLength());
+                entryOut.writeLong(file.getTime());
+                entryOut.writeInt(attributesNumber(file.getRights(), file.getUser(), file.getGroup()));
+            } else {
+                IndexDirectory directory = (IndexDirectory) entry;
+                entryOut.writeInt(-1);
+                entryOut.writeLong(children.size());
+                entryOut.writeLong(directory.getChildren().size());
+                for (String child : directory.getChildren()) {
+                    byte[] name = child.getBytes(StandardCharsets.UTF_8);
+                    writeVarInt(children, name.length);
+                    children.write(name, 0, name.length);
+                }
+                entryOut.writeLong(directory.getTime());
+                entryOut.writeInt(attributesNumber(directory.getRights(), directory.getUser(),
+                        directory.getGroup()));
+            }
+            paths.add(entry.getPath());
+            return true;
+        }
+
+        void write(FSDataOutputStream stream, FileStatus indexStatus) throws IOException {
+            entryOut.flush();
+            ByteBuffer entries = ByteBuffer.wrap(entryBytes.toByteArray());
+            ByteArrayOutputStream pathData = new ByteArrayOutputStream();
+            List<Integer> pathBlocks = new ArrayList<>();
+
+            Integer[] byPath = new Integer[paths.size()];
+            for (int i = 0; i < byPath.length; i++)
+                byPath[i] = i;
+            Arrays.sort(byPath, (a, b) -> paths.get(a).compareTo(paths.get(b)));
+            byte[] previous = new byte[0];
+            for (int i = 0; i < byPath.length; i++) {
+                entries.putInt(byPath[i] * ENTRY_BYTES + 4, i);
+                byte[] path = paths.get(byPath[i]).getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                if (i % PATH_BLOCK_SIZE == 0) {
+                    pathBlocks.add(pathData.size());
+                } else {
+                    while (shared < previous.length && shared < path.length && previous[shared] == path[shared])
+                        shared++;
+                }
+                writeVarInt(pathData, shared);
+                writeVarInt(pathData, path.length - shared);
+                pathData.write(path, shared, path.length - shared);
+                previous = path;
+            }
+
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexStatus.getLen());
+            out.writeLong(indexStatus.getModificationTime());
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(attributes.size());
+            for (List<Integer> attribute : attributes) {
+                for (int string : attribute)
+                    out.writeInt(string);
+            }
+            out.writeInt(paths.size());
+            out.write(entries.array());
+            out.writeInt(pathBlocks.size());
+            for (int block : pathBlocks)
+                out.writeInt(block);
+            out.writeInt(pathData.size());
+            pathData.writeTo(out);
+            out.writeInt(children.size());
+            children.writeTo(out);
+            out.flush();
+        }
+
+        private int stringNumber(String string) {
+            return stringNumbers.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            });
+        }
+
+        private int attributesNumber(String rights, String user, String group) {
+            List<Integer> attribute = Arrays.asList(stringNumber(rights), stringNumber(user), stringNumber(group));
+            return attributeNumbers.computeIfAbsent(attribute, a -> {
+                attributes.add(a);
+                return attributes.size() - 1;
+            });
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * @return the entry of the path or null, entries with the same hash are told apart by their path
+     */
+    public IndexEntry find(int harHash, String path) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries.getInt(mid * ENTRY_BYTES) < harHash)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        for (int i = low; i < count && entries.getInt(i * ENTRY_BYTES) == harHash; i++) {
+            String entryPath = pathAt(entries.getInt(i * ENTRY_BYTES + 4));
+            if (entryPath.equals(path))
+                return entryAt(i, entryPath);
+        }
+        return null;
+    }
+
+    private String pathAt(int number) {
+        ByteBuffer in = paths.duplicate();
+        in.position(pathBlocks[number / PATH_BLOCK_SIZE]);
+        byte[] path = new byte[0];
+        for (int i = 0; i <= number % PATH_BLOCK_SIZE; i++) {
+            int shared = readVarInt(in);
+            byte[] next = Arrays.copyOf(path, shared + readVarInt(in));
+            in.get(next, shared, next.length - shared);
+            path = next;
+        }
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    private IndexEntry entryAt(int i, String path) {
+        int position = i * ENTRY_BYTES;
+        int part = entries.getInt(position + 8);
+        long offset = entries.getLong(position + 12);
+        long length = entries.getLong(position + 20);
+        long time = entries.getLong(position + 28);
+        int attribute = entries.getInt(position + 36) * 3;
+        String rights = strings[attributes[attribute]];
+        String user = strings[attributes[attribute + 1]];
+        String group = strings[attributes[attribute + 2]];
+        if (part >= 0)
+            return new IndexFile(entries.getInt(position), path, strings[part], offset, length, time, rights, user,
+                    group);
+
+        IndexDirectory directory = new IndexDirectory(path, time, rights, user, group);
+        ByteBuffer in = children.duplicate();
+        in.position((int) offset);
+        for (long child = 0; child < length; child++) {
+            byte[] name = new byte[readVarInt(in)];
+            in.get(name);
+            directory.addChild(new String(name, StandardCharsets.UTF_8));
+        }
+        return directory;
+    }
+
+    public int size() {
+        return count;
+    }
+}
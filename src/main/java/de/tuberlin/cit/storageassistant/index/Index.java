@@ -1,88 +1,393 @@
 package de.tuberlin.cit.storageassistant.index;
 
 import de.tuberlin.cit.storageassistant.DFSUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.util.*;
 
 public class Index {
-    private static final int INDEX_PARTITION_SIZE = 1000;
+    private final static Logger log = Logger.getLogger(Index.class);
+
+    /**
+     * Maximum number of lines in a partition of the _index. Readers binary search the _masterindex and then
+     * scan one partition line by line, so smaller partitions make lookups faster and the _masterindex larger.
+     */
+    public static final String PARTITION_SIZE_KEY = "ahar.index.partition.size";
+    public static final int DEFAULT_PARTITION_SIZE = 1000;
+
+    /**
+     * Maximum number of bytes in a partition of the _index, 0 for no limit. Lets partitions adapt to the
+     * length of the lines, e.g. directories with many children, so scanning any partition takes about as long.
+     */
+    public static final String PARTITION_BYTES_KEY = "ahar.index.partition.bytes";
+    public static final long DEFAULT_PARTITION_BYTES = 0;
+
+    /**
+     * Whether every write of the _index also writes the binary _index.bin, see {@link BinaryIndex}. Costs one
+     * more sequential read of the _index per write and lets ArchiveReader load the archive without parsing.
+     */
+    public static final String BINARY_INDEX_KEY = "ahar.index.binary";
+    public static final boolean DEFAULT_BINARY_INDEX = false;
 
     private FileSystem fs;
     private Path harPath;
 
-    private SortedMap<Integer, IndexFile> fileEntries = new TreeMap<>();
+    private StringDictionary dictionary = new StringDictionary();
+    private IndexFileTable fileEntries = new IndexFileTable(dictionary);
     private SortedMap<Integer, IndexDirectory> directoryEntries = new TreeMap<>();
 
+    /**
+     * Partitions of the _index as listed in the _masterindex. Only set if the index is loaded partially,
+     * a fully loaded index holds every entry and is always written as a whole.
+     */
+    private List<MasterIndexEntry> partitions = Collections.emptyList();
+    private BitSet loadedPartitions = new BitSet();
+    /**
+     * Partitions an entry was added to since the index was loaded or written. Only these are written line by
+     * line, all others are copied from the previous _index, even if they were loaded for lookups.
+     */
+    private BitSet dirtyPartitions = new BitSet();
+
     public Index(Path harPath, FileSystem fs) throws IOException {
         this.fs = fs;
         this.harPath = harPath;
         parseAllIndexEntries(harPath);
     }
 
+    private Index(Path harPath, FileSystem fs, List<MasterIndexEntry> partitions) {
+        this.fs = fs;
+        this.harPath = harPath;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Opens the index of an archive without parsing the _index. A partition of the _index is only loaded
+     * once an entry with a hash in its range is looked up or added, and {@link #writeToFile()} rewrites
+     * just the loaded partitions. All other partitions are copied as they are, only their offsets in the
+     * _masterindex are shifted. Appending a few files therefore touches a few partitions instead of every
+     * entry of the archive.
+     *
+     * Falls back to loading the whole index if the _masterindex does not describe the _index.
+     *
+     * @param harPath
+     * @param fs
+     * @return
+     * @throws IOException
+     */
+    public static Index loadPartially(Path harPath, FileSystem fs) throws IOException {
+        List<MasterIndexEntry> partitions = readMasterIndex(harPath, fs);
+        if (partitions.isEmpty())
+            return new Index(harPath, fs);
+        return new Index(harPath, fs, partitions);
+    }
+
+    /**
+     * @return the partitions listed in the _masterindex, or an empty list if the archive has no _masterindex
+     * or it does not describe the _index
+     */
+    public static List<MasterIndexEntry> readMasterIndex(Path harPath, FileSystem fs) throws IOException {
+        Path masterIndexPath = new Path(harPath, "_masterindex");
+        if (!fs.exists(masterIndexPath))
+            return Collections.emptyList();
+
+        String[] lines = DFSUtils.readLines(masterIndexPath, fs);
+        List<MasterIndexEntry> partitions = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) { // the first line contains the har-version
+            if (!lines[i].trim().isEmpty())
+                partitions.add(MasterIndexEntry.parse(lines[i]));
+        }
+
+        long indexLength = fs.getFileStatus(new Path(harPath, "_index")).getLen();
+        if (!describesIndex(partitions, indexLength)) {
+            log.warn("_masterindex of " + harPath + " does not match its _index, loading the whole index");
+            return Collections.emptyList();
+        }
+        return partitions;
+    }
+
+    private static boolean describesIndex(List<MasterIndexEntry> partitions, long indexLength) {
+        long position = 0;
+        int hash = Integer.MIN_VALUE;
+        for (MasterIndexEntry partition : partitions) {
+            if (partition.getStartPosition() != position || partition.getLastHash() < hash)
+                return false;
+            position = partition.getEndPosition();
+            hash = partition.getLastHash();
+        }
+        return !partitions.isEmpty() && position == indexLength;
+    }
+
     private void parseAllIndexEntries(Path harPath) throws IOException {
-        List<IndexEntry> allIndexEntries = parseIndex(new Path(harPath, "_index"));
-        for (IndexEntry entry : allIndexEntries) {
+        try (IndexReader indexReader = new IndexReader(fs.open(new Path(harPath, "_index")))) {
+            readEntries(indexReader);
+        }
+    }
+
+    private void readEntries(IndexReader indexReader) throws IOException {
+        IndexEntry entry;
+        while ((entry = indexReader.next()) != null) {
             if (entry.isFile())
-                addEntry((IndexFile) entry);
+                fileEntries.put((IndexFile) entry);
+            else
+                putDirectory((IndexDirectory) entry);
+        }
+    }
+
+    /**
+     * Partition i holds the hashes after the last hash of partition i - 1 up to and including its own last
+     * hash. Hashes beyond the last partition belong to the last partition.
+     */
+    private int partitionFor(int harHash) {
+        int low = 0;
+        int high = partitions.size() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (partitions.get(mid).getLastHash() < harHash)
+                low = mid + 1;
             else
-                addEntry((IndexDirectory) entry);
+                high = mid;
+        }
+        return low;
+    }
+
+    private void loadPartitionFor(int harHash) throws IOException {
+        if (partitions.isEmpty())
+            return;
+        int partition = partitionFor(harHash);
+        if (!loadedPartitions.get(partition))
+            loadPartition(partition);
+    }
+
+    private void loadPartitionForChange(int harHash) throws IOException {
+        if (partitions.isEmpty())
+            return;
+        loadPartitionFor(harHash);
+        dirtyPartitions.set(partitionFor(harHash));
+    }
+
+    private void loadPartition(int partition) throws IOException {
+        MasterIndexEntry masterIndexEntry = partitions.get(partition);
+        loadedPartitions.set(partition);
+        if (masterIndexEntry.getLength() == 0)
+            return;
+
+        FSDataInputStream indexInStream = fs.open(new Path(harPath, "_index"));
+        indexInStream.seek(masterIndexEntry.getStartPosition());
+        try (IndexReader indexReader =
+                     new IndexReader(new BoundedInputStream(indexInStream, masterIndexEntry.getLength()))) {
+            readEntries(indexReader);
         }
     }
 
-    private List<IndexEntry> parseIndex(Path indexPath) throws IOException {
-        List<IndexEntry> parsedIndexEntries = new ArrayList<>();
-        DFSUtils.readAsList(indexPath, fs).forEach(line -> parsedIndexEntries.add(IndexEntry.parse(line)));
-        return parsedIndexEntries;
+    public void addEntry(IndexFile entry) throws IOException {
+        loadPartitionForChange(entry.getHarHash());
+        fileEntries.put(entry);
     }
 
-    public void addEntry(IndexFile entry) {
-        fileEntries.put(entry.getHarHash(), entry);
+    public void addEntry(IndexDirectory entry) throws IOException {
+        loadPartitionForChange(entry.getHarHash());
+        putDirectory(entry);
     }
 
-    public void addEntry(IndexDirectory entry) {
+    private void putDirectory(IndexDirectory entry) {
+        entry.internAttributes(dictionary);
         directoryEntries.merge(entry.getHarHash(), entry, IndexDirectory::combine);
     }
 
-    public void writeToFile() {
-        SortedSet<IndexEntry> sortedIndex = getAllEntries();
-        try (FSDataOutputStream indexOutStream = fs.create(new Path(harPath, "_index"))) {
-            IndexWriteObserver iWriteObserver = new IndexWriteObserver(INDEX_PARTITION_SIZE, harPath, fs);
+    /**
+     * Writes the index and the matching _masterindex to temporary files that replace the _index and the
+     * _masterindex once both are complete. Partitions of a partially loaded index that no entry was added to are copied
+     * from the previous _index and keep their _masterindex entries, only shifted to their new position.
+     * Nothing is written if no partition changed.
+     *
+     * Partitions written line by line are split according to {@link #PARTITION_SIZE_KEY} and
+     * {@link #PARTITION_BYTES_KEY}. With {@link #BINARY_INDEX_KEY} set, the _index.bin is rebuilt afterwards.
+     *
+     * @throws IOException if the _index or _masterindex could not be written; the previous _index is only
+     * replaced once the new one is complete
+     */
+    public void writeToFile() throws IOException {
+        writeToFile(null);
+    }
 
-            for (IndexEntry entry : sortedIndex) {
-                indexOutStream.write(entry.getBytes());
-                iWriteObserver.lineWritten(entry.getHarHash(), indexOutStream.getPos());
+    /**
+     * Like {@link #writeToFile()}, but marks the journal of the change as committing before the temporary
+     * files replace the _index and _masterindex, so an interrupted rename is completed on recovery.
+     */
+    public void writeToFile(Journal journal) throws IOException {
+        if (!partitions.isEmpty() && dirtyPartitions.isEmpty()) {
+            log.debug("No partition of " + harPath + " changed, the index is not written");
+            return;
+        }
+        Path newIndexPath = new Path(harPath, "_index.tmp");
+        SortedEntryCursor sortedEntries = new SortedEntryCursor();
+        IndexWriteObserver iWriteObserver = new IndexWriteObserver(
+                Math.max(1, fs.getConf().getInt(PARTITION_SIZE_KEY, DEFAULT_PARTITION_SIZE)),
+                fs.getConf().getLong(PARTITION_BYTES_KEY, DEFAULT_PARTITION_BYTES), harPath, fs);
+        BitSet loadedCopies = new BitSet();
+
+        try (FSDataOutputStream indexOutStream = fs.create(newIndexPath)) {
+            IndexEntryWriter writer = new IndexEntryWriter(indexOutStream);
+            if (partitions.isEmpty())
+                writeEntries(sortedEntries, Integer.MAX_VALUE, writer, iWriteObserver);
+            else
+                writePartitions(sortedEntries, writer, iWriteObserver, loadedCopies);
+            writer.flush();
+        }
+        iWriteObserver.finish();
+        if (journal != null)
+            journal.committing();
+        Journal.publishIndex(fs, harPath);
+        if (!partitions.isEmpty())
+            updatePartitions(iWriteObserver, loadedCopies);
+        if (fs.getConf().getBoolean(BINARY_INDEX_KEY, DEFAULT_BINARY_INDEX))
+            writeBinaryIndex();
+    }
+
+    /**
+     * A failed binary index does not fail the write, readers ignore a binary index that does not match the
+     * _index and read the _index instead.
+     */
+    private void writeBinaryIndex() {
+        try {
+            BinaryIndex.write(fs, harPath);
+        } catch (IOException e) {
+            log.warn("Unable to write the binary index of " + harPath, e);
+        }
+    }
+
+    /**
+     * @param loadedCopies collects the new positions of copied partitions whose entries are loaded
+     */
+    private void writePartitions(SortedEntryCursor sortedEntries, IndexEntryWriter writer,
+                                 IndexWriteObserver iWriteObserver, BitSet loadedCopies) throws IOException {
+        try (FSDataInputStream previousIndex = fs.open(new Path(harPath, "_index"))) {
+            for (int i = 0; i < partitions.size(); i++) {
+                MasterIndexEntry partition = partitions.get(i);
+                int lastHash = i == partitions.size() - 1 ? Integer.MAX_VALUE : partition.getLastHash();
+                if (dirtyPartitions.get(i)) {
+                    writeEntries(sortedEntries, lastHash, writer, iWriteObserver);
+                    continue;
+                }
+                if (loadedPartitions.get(i))
+                    sortedEntries.skipThrough(lastHash);
+                if (partition.getLength() > 0) {
+                    previousIndex.seek(partition.getStartPosition());
+                    writer.copy(previousIndex, partition.getLength());
+                    iWriteObserver.partitionCopied(partition.getLastHash(), writer.getPos());
+                    if (loadedPartitions.get(i))
+                        loadedCopies.set(iWriteObserver.getMasterIndexEntries().size() - 1);
+                }
             }
-            iWriteObserver.finalize(sortedIndex.last().getHarHash(), indexOutStream.getPos());
-            indexOutStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
-    private SortedSet<IndexEntry> getAllEntries() {
-        SortedSet<IndexEntry> sortedIndex = new TreeSet<>();
-        directoryEntries.forEach((hash, entry) -> sortedIndex.add(entry));
-        fileEntries.forEach((hash, entry) -> sortedIndex.add(entry));
-        return sortedIndex;
+    private void writeEntries(SortedEntryCursor sortedEntries, int lastHash, IndexEntryWriter writer,
+                              IndexWriteObserver iWriteObserver) throws IOException {
+        while (sortedEntries.hasNext() && sortedEntries.nextHash() <= lastHash) {
+            int harHash = sortedEntries.nextHash();
+            sortedEntries.writeNext(writer);
+            iWriteObserver.lineWritten(harHash, writer.getPos());
+        }
+    }
+
+    /**
+     * Aligns the partitions with the _masterindex that was just written, so the index can be changed and
+     * written again.
+     */
+    private void updatePartitions(IndexWriteObserver iWriteObserver, BitSet loadedCopies) {
+        partitions = new ArrayList<>(iWriteObserver.getMasterIndexEntries());
+        loadedPartitions = new BitSet();
+        dirtyPartitions = new BitSet();
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!iWriteObserver.wasCopied(i) || loadedCopies.get(i))
+                loadedPartitions.set(i);
+        }
+    }
+
+    /**
+     * Walks the file table and the directory entries side by side in hash order, so all entries can be
+     * written without collecting them in another sorted collection first.
+     */
+    private class SortedEntryCursor {
+        private int filePosition = 0;
+        private final Iterator<IndexDirectory> directories = directoryEntries.values().iterator();
+        private IndexDirectory nextDirectory;
+
+        SortedEntryCursor() {
+            fileEntries.mergePending();
+            nextDirectory = directories.hasNext() ? directories.next() : null;
+        }
+
+        boolean hasNext() {
+            return filePosition < fileEntries.size() || nextDirectory != null;
+        }
+
+        int nextHash() {
+            return nextIsDirectory() ? nextDirectory.getHarHash() : fileEntries.hashAt(filePosition);
+        }
+
+        /**
+         * Moves past the entries up to and including lastHash without writing them.
+         */
+        void skipThrough(int lastHash) {
+            while (hasNext() && nextHash() <= lastHash) {
+                if (nextIsDirectory())
+                    nextDirectory = directories.hasNext() ? directories.next() : null;
+                else
+                    filePosition++;
+            }
+        }
+
+        void writeNext(IndexEntryWriter writer) throws IOException {
+            if (nextIsDirectory()) {
+                writer.writeDirectory(nextDirectory);
+                nextDirectory = directories.hasNext() ? directories.next() : null;
+            } else {
+                fileEntries.writeEntry(filePosition++, writer);
+            }
+        }
+
+        private boolean nextIsDirectory() {
+            return nextDirectory != null && (filePosition == fileEntries.size()
+                    || nextDirectory.getHarHash() <= fileEntries.hashAt(filePosition));
+        }
+    }
+
+    /**
+     * @return the loaded file entries in hash order, for a partially loaded index only those of loaded
+     * partitions
+     */
+    public Iterable<IndexFile> getFileEntries() {
+        return fileEntries;
     }
 
-    public boolean containsEntryFor(FileStatus fileStatus) {
+    public boolean containsEntryFor(FileStatus fileStatus) throws IOException {
         return containsEntryForHash(DFSUtils.getHarHash(fileStatus));
     }
 
-    public boolean containsEntryForHash(int harHash) {
-        return fileEntries.containsKey(harHash) || directoryEntries.containsKey(harHash);
+    public boolean containsEntryForHash(int harHash) throws IOException {
+        loadPartitionFor(harHash);
+        return fileEntries.containsHash(harHash) || directoryEntries.containsKey(harHash);
     }
 
+    /**
+     * @return number of loaded directory entries, for a partially loaded index only those of loaded partitions
+     */
     public Integer numberOfDirectoryEntries() {
         return directoryEntries.size();
     }
 
+    /**
+     * @return number of loaded file entries, for a partially loaded index only those of loaded partitions
+     */
     public Integer numberOfFileEntries() {
         return fileEntries.size();
     }
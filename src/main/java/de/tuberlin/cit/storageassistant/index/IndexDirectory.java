@@ -1,5 +1,6 @@
 package de.tuberlin.cit.storageassistant.index;
 
+import de.tuberlin.cit.storageassistant.DFSUtils;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.HarFileSystem;
 import org.apache.hadoop.fs.Path;
@@ -25,8 +26,7 @@ import java.util.Set;
  *
  */
 public class IndexDirectory extends IndexEntry {
-    private String line;
-    private Long time;
+    private long time;
     private String rights;
     private String user;
     private String group;
@@ -35,40 +35,32 @@ public class IndexDirectory extends IndexEntry {
     private Set<String> children = new HashSet<>();
 
     public IndexDirectory(FileStatus fileStatus) {
-        this.path = fileStatus.getPath().toString().replaceFirst("hdfs:\\/\\/.+:\\d{4,6}",""); // don't ask
+        this.path = DFSUtils.getPathRelativeToRootDirectory(fileStatus.getPath());
         this.type = IndexEntry.TYPE_DIRECTORY;
         this.time = fileStatus.getModificationTime();
-        this.rights = new Short(fileStatus.getPermission().toShort()).toString();
+        this.rights = Short.toString(fileStatus.getPermission().toShort());
         this.user = fileStatus.getOwner();
         this.group = fileStatus.getGroup();
         this.name = fileStatus.getPath().getName();
     }
 
-    protected IndexDirectory(String line) {
-        String[] entrySet = line.split(" |\\+");
-        this.line = line;
-        this.path = entrySet[0].replace("%2F", "/");
+    IndexDirectory(String path, long time, String rights, String user, String group) {
+        this.path = path;
         this.type = IndexEntry.TYPE_DIRECTORY;
-        this.time = new Long(entrySet[2]);
-        this.rights = entrySet[3];
-        this.user = entrySet[4];
-        this.group = entrySet[5];
-        // items 6 and 7 are 0 for directories
-
-        if (entrySet.length > 7) {
-            for (int i = 8; i < entrySet.length; i++) {
-                children.add(entrySet[i]);
-            }
-        }
+        this.time = time;
+        this.rights = rights;
+        this.user = user;
+        this.group = group;
     }
 
     @Override
     public String toString() {
-        String line = path.replace("/","%2F") + " dir " + time + "+" + rights + "+" + user + "+" + group + " 0 0 ";
-        for (String child: children) {
-            line += child + " "; // TODO: get rid of leading '/'
+        StringBuilder line = new StringBuilder(path.replace("/", "%2F")).append(" dir ").append(time).append('+')
+                .append(rights).append('+').append(user).append('+').append(group).append(" 0 0 ");
+        for (String child : children) {
+            line.append(child).append(' '); // TODO: get rid of leading '/'
         }
-        return line;
+        return line.toString();
     }
 
     @Override
@@ -77,13 +69,39 @@ public class IndexDirectory extends IndexEntry {
     }
 
     @Override
-    public Long getOffset() {
-        return new Long(0);
+    public long getOffset() {
+        return 0;
     }
 
     @Override
-    public Long getLength() {
-        return new Long(0);
+    public long getLength() {
+        return 0;
+    }
+
+    /**
+     * Replaces permissions, owner and group with the instances held by the dictionary, so directories with
+     * the same attributes share them.
+     */
+    void internAttributes(StringDictionary dictionary) {
+        rights = dictionary.intern(rights);
+        user = dictionary.intern(user);
+        group = dictionary.intern(group);
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getRights() {
+        return rights;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getGroup() {
+        return group;
     }
 
     public void addChild(String childName) {
@@ -3,44 +3,86 @@ package de.tuberlin.cit.storageassistant.index;
 import org.apache.hadoop.fs.HarFileSystem;
 import org.apache.hadoop.fs.Path;
 
+import java.nio.charset.StandardCharsets;
+
 public abstract class IndexEntry implements Comparable<IndexEntry> {
     public static final String TYPE_FILE = "file";
     public static final String TYPE_DIRECTORY = "dir";
 
     protected String path;
     protected String type;
-    protected Integer harHash;
+    protected int harHash;
+    protected boolean harHashCalculated = false;
 
     abstract public String toString();
 
-    abstract public Long getOffset();
+    abstract public long getOffset();
 
-    abstract public Long getLength();
+    abstract public long getLength();
 
     abstract public boolean isFile();
 
+    /**
+     * Parses a single line of an _index. {@link IndexReader} parses the lines of a whole _index without
+     * creating a String per line first.
+     */
     public static IndexEntry parse(String line) {
-        String[] entrySet = line.split(" ", 3); // \(^_^)\
-        if (entrySet[1].equals("file")) {
-            return new IndexFile(line);
-        } else {
-            return new IndexDirectory(line);
-        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return new IndexLineTokenizer().parse(bytes, bytes.length);
+    }
+
+    /**
+     * Parses a single UTF-8 encoded line of an _index, without the line break.
+     */
+    public static IndexEntry parse(byte[] line, int length) {
+        return new IndexLineTokenizer().parse(line, length);
     }
 
-    protected Integer calculateHarHash() {
+    protected int calculateHarHash() {
+        if (isNormalizedAbsolutePath(path))
+            return path.hashCode() & 0x7fffffff; // what HarFileSystem.getHarHash computes for such paths
         return HarFileSystem.getHarHash(new Path(path.replace("%2F", "/")));
     }
 
-    public Integer getHarHash() {
-        if (harHash == null) {
+    /**
+     * @return true if {@link Path#toString()} returns the path unchanged, i.e. it starts with a slash and has
+     * no scheme, no empty, "." or ".." segments, no trailing slash and no backslashes
+     */
+    private static boolean isNormalizedAbsolutePath(String path) {
+        int length = path.length();
+        if (length == 0 || path.charAt(0) != '/')
+            return false;
+        if (length == 1)
+            return true;
+        int segmentStart = 1;
+        boolean onlyDots = true;
+        for (int i = 1; i <= length; i++) {
+            char c = i < length ? path.charAt(i) : '/';
+            if (c == '/') {
+                int segmentLength = i - segmentStart;
+                if (segmentLength == 0 || (onlyDots && segmentLength <= 2))
+                    return false;
+                segmentStart = i + 1;
+                onlyDots = true;
+            } else if (c == '\\' || c == '%' || c == ':') {
+                return false;
+            } else if (c != '.') {
+                onlyDots = false;
+            }
+        }
+        return true;
+    }
+
+    public int getHarHash() {
+        if (!harHashCalculated) {
             this.harHash = calculateHarHash();
+            this.harHashCalculated = true;
         }
         return harHash;
     }
 
     public byte[] getBytes() {
-        return (toString() + "\n").getBytes();
+        return (toString() + "\n").getBytes(StandardCharsets.UTF_8);
     }
 
     public String getName() {
@@ -57,6 +99,6 @@ public abstract class IndexEntry implements Comparable<IndexEntry> {
 
     @Override
     public int compareTo(IndexEntry entry) {
-        return harHash.compareTo(entry.getHarHash());
+        return Integer.compare(getHarHash(), entry.getHarHash());
     }
 }
@@ -0,0 +1,177 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Serializes index lines into one reusable buffer. Strings are UTF-8 encoded and '/' is percent-encoded
+ * char by char and numbers are written digit by digit, so writing a line creates no intermediate Strings
+ * or byte arrays.
+ */
+class IndexEntryWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FSDataOutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[20];
+    private int count = 0;
+
+    IndexEntryWriter(FSDataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * %2Fpath%2Fto%2Ffile file part-0 offset length time+rights+user+group
+     */
+    void writeFile(byte[] path, byte[] part, long offset, long length, long time, byte[] rights, byte[] user,
+                   byte[] group) throws IOException {
+        writeBytes(path, true);
+        put(' ');
+        writeAscii(IndexEntry.TYPE_FILE);
+        put(' ');
+        writeBytes(part, false);
+        put(' ');
+        writeLong(offset);
+        put(' ');
+        writeLong(length);
+        put(' ');
+        writeProperties(time, rights, user, group);
+        put('\n');
+    }
+
+    /**
+     * %2Fpath%2Fto%2Fdir dir time+rights+user+group 0 0 child1 child2
+     */
+    void writeDirectory(IndexDirectory directory) throws IOException {
+        writeString(directory.getPath(), true);
+        put(' ');
+        writeAscii(IndexEntry.TYPE_DIRECTORY);
+        put(' ');
+        writeLong(directory.getTime());
+        put('+');
+        writeString(directory.getRights(), false);
+        put('+');
+        writeString(directory.getUser(), false);
+        put('+');
+        writeString(directory.getGroup(), false);
+        writeAscii(" 0 0 ");
+        for (String child : directory.getChildren()) {
+            writeString(child, false);
+            put(' ');
+        }
+        put('\n');
+    }
+
+    private void writeProperties(long time, byte[] rights, byte[] user, byte[] group) throws IOException {
+        writeLong(time);
+        put('+');
+        writeBytes(rights, false);
+        put('+');
+        writeBytes(user, false);
+        put('+');
+        writeBytes(group, false);
+    }
+
+    /**
+     * Copies bytes from another stream, e.g. a partition of the previous index, behind the buffered lines.
+     */
+    void copy(InputStream in, long length) throws IOException {
+        flush();
+        IOUtils.copyBytes(in, out, length, false);
+    }
+
+    /**
+     * @return position of the stream including the buffered bytes
+     */
+    long getPos() throws IOException {
+        return out.getPos() + count;
+    }
+
+    void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void put(char c) throws IOException {
+        put((byte) c);
+    }
+
+    private void put(byte b) throws IOException {
+        if (count == buffer.length)
+            flush();
+        buffer[count++] = b;
+    }
+
+    private void writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++)
+            put(value.charAt(i));
+    }
+
+    private void writeBytes(byte[] value, boolean encodeSeparator) throws IOException {
+        for (byte b : value) {
+            if (encodeSeparator && b == '/')
+                writeEncodedSeparator();
+            else
+                put(b);
+        }
+    }
+
+    private void writeString(String value, boolean encodeSeparator) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (encodeSeparator && c == '/')
+                    writeEncodedSeparator();
+                else
+                    put(c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                put('?'); // unpaired surrogate, like String.getBytes
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void writeEncodedSeparator() throws IOException {
+        put('%');
+        put('2');
+        put('F');
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == 0) {
+            put('0');
+            return;
+        }
+        // work with the negative value, it also covers Long.MIN_VALUE
+        long remaining = value;
+        if (value > 0)
+            remaining = -value;
+        else
+            put('-');
+        int position = digits.length;
+        while (remaining != 0) {
+            digits[--position] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        }
+        while (position < digits.length)
+            put(digits[position++]);
+    }
+}
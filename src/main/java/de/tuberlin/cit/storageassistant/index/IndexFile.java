@@ -1,48 +1,55 @@
 package de.tuberlin.cit.storageassistant.index;
 
+import de.tuberlin.cit.storageassistant.DFSUtils;
 import org.apache.hadoop.fs.FileStatus;
 
 public class IndexFile extends IndexEntry {
     private String part;
-    private Long offset;
-    private Long length;
-    private Long time;
+    private long offset;
+    private long length;
+    private long time;
     private String rights;
     private String user;
     private String group;
 
-    private String name;
-
     public IndexFile(FileStatus fileStatus, long offset, String part) {
-        String qualifiedPath = getPathRelativeToRootDirectory(fileStatus);
-        this.path = qualifiedPath;
+        this.path = DFSUtils.getPathRelativeToRootDirectory(fileStatus.getPath());
         this.type = IndexEntry.TYPE_FILE;
         this.part = part;
         this.offset = offset;
         this.length = fileStatus.getLen();
         this.time = fileStatus.getModificationTime();
-        this.rights = new Short(fileStatus.getPermission().toShort()).toString();
+        this.rights = Short.toString(fileStatus.getPermission().toShort());
         this.user = fileStatus.getOwner();
         this.group = fileStatus.getGroup();
-        this.name = fileStatus.getPath().getName();
     }
 
-    protected IndexFile(String line) {
-        String[] entrySet = line.split(" |\\+"); // \(^_^)\
-
-        this.path = entrySet[0];
+    IndexFile(String path, String part, long offset, long length, long time, String rights, String user,
+              String group) {
+        this.path = path;
         this.type = IndexEntry.TYPE_FILE;
-        this.part = entrySet[2];
-        this.offset = new Long(entrySet[3]);
-        this.length = new Long(entrySet[4]);
-        this.time = new Long(entrySet[5]);
-        this.rights = entrySet[6];
-        this.user = entrySet[7];
-        this.group = entrySet[8];
+        this.part = part;
+        this.offset = offset;
+        this.length = length;
+        this.time = time;
+        this.rights = rights;
+        this.user = user;
+        this.group = group;
     }
 
-    private String getPathRelativeToRootDirectory(FileStatus fileStatus) {
-        return fileStatus.getPath().toString().replaceFirst("hdfs:\\/\\/.+:\\d{4,6}", "");
+    IndexFile(int harHash, String path, String part, long offset, long length, long time, String rights,
+              String user, String group) {
+        this(path, part, offset, length, time, rights, user, group);
+        this.harHash = harHash;
+        this.harHashCalculated = true;
+    }
+
+    /**
+     * @return an entry for the same file with its content at another place, e.g. after the archive was
+     * compacted
+     */
+    public IndexFile movedTo(String part, long offset) {
+        return new IndexFile(getHarHash(), path, part, offset, length, time, rights, user, group);
     }
 
     @Override
@@ -57,17 +64,32 @@ public class IndexFile extends IndexEntry {
     }
 
     @Override
-    public Long getOffset() {
+    public long getOffset() {
         return offset;
     }
 
     @Override
-    public Long getLength() {
+    public long getLength() {
         return length;
     }
 
-    @Override
-    public String getName() {
-        return name;
+    public String getPart() {
+        return part;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getRights() {
+        return rights;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getGroup() {
+        return group;
     }
 }
@@ -0,0 +1,176 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Holds the file entries of an {@link Index} in parallel primitive arrays sorted by hash, instead of one
+ * {@link IndexFile} object with boxed fields and its own Strings per entry. Part names, permissions, owners
+ * and groups are stored as {@link StringDictionary} codes and paths as UTF-8 bytes.
+ *
+ * Entries that arrive in hash order, as they do when an _index is parsed, are appended to the arrays.
+ * Entries that would have to be inserted in between are collected in a small sorted overlay first and merged
+ * into the arrays in one pass once the overlay grows or the table is iterated.
+ */
+class IndexFileTable implements Iterable<IndexFile> {
+    private static final int MIN_MERGE_THRESHOLD = 1024;
+
+    private final StringDictionary dictionary;
+
+    private int size = 0;
+    private int[] hashes = new int[16];
+    private long[] offsets = new long[16];
+    private long[] lengths = new long[16];
+    private long[] times = new long[16];
+    private int[] parts = new int[16];
+    private int[] rights = new int[16];
+    private int[] users = new int[16];
+    private int[] groups = new int[16];
+    private byte[][] paths = new byte[16][];
+
+    private final TreeMap<Integer, IndexFile> pending = new TreeMap<>();
+
+    IndexFileTable(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Adds the entry or replaces the entry with the same hash.
+     */
+    void put(IndexFile entry) {
+        int hash = entry.getHarHash();
+        int position = Arrays.binarySearch(hashes, 0, size, hash);
+        if (position >= 0) {
+            set(position, entry);
+        } else if (-position - 1 == size) {
+            ensureCapacity(size + 1);
+            set(size++, entry);
+        } else {
+            pending.put(hash, entry);
+            if (pending.size() > Math.max(MIN_MERGE_THRESHOLD, size / 8))
+                mergePending();
+        }
+    }
+
+    boolean containsHash(int hash) {
+        return Arrays.binarySearch(hashes, 0, size, hash) >= 0 || pending.containsKey(hash);
+    }
+
+    IndexFile get(int hash) {
+        int position = Arrays.binarySearch(hashes, 0, size, hash);
+        return position >= 0 ? entryAt(position) : pending.get(hash);
+    }
+
+    int size() {
+        return size + pending.size();
+    }
+
+    /**
+     * Iterates the entries in hash order. Every call creates the IndexFile objects anew.
+     */
+    @Override
+    public Iterator<IndexFile> iterator() {
+        mergePending();
+        return new Iterator<IndexFile>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public IndexFile next() {
+                if (position >= size)
+                    throw new NoSuchElementException();
+                return entryAt(position++);
+            }
+        };
+    }
+
+    /**
+     * Position based access for writers that walk the table without creating entry objects. Positions are
+     * only valid after {@link #mergePending()} and until the next change.
+     */
+    int hashAt(int position) {
+        return hashes[position];
+    }
+
+    void writeEntry(int position, IndexEntryWriter writer) throws IOException {
+        writer.writeFile(paths[position], dictionary.bytes(parts[position]), offsets[position],
+                lengths[position], times[position], dictionary.bytes(rights[position]),
+                dictionary.bytes(users[position]), dictionary.bytes(groups[position]));
+    }
+
+    private IndexFile entryAt(int position) {
+        return new IndexFile(hashes[position], new String(paths[position], StandardCharsets.UTF_8),
+                dictionary.decode(parts[position]), offsets[position], lengths[position], times[position],
+                dictionary.decode(rights[position]), dictionary.decode(users[position]),
+                dictionary.decode(groups[position]));
+    }
+
+    private void set(int position, IndexFile entry) {
+        hashes[position] = entry.getHarHash();
+        offsets[position] = entry.getOffset();
+        lengths[position] = entry.getLength();
+        times[position] = entry.getTime();
+        parts[position] = dictionary.encode(entry.getPart());
+        rights[position] = dictionary.encode(entry.getRights());
+        users[position] = dictionary.encode(entry.getUser());
+        groups[position] = dictionary.encode(entry.getGroup());
+        paths[position] = entry.getPath().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void move(int from, int to) {
+        hashes[to] = hashes[from];
+        offsets[to] = offsets[from];
+        lengths[to] = lengths[from];
+        times[to] = times[from];
+        parts[to] = parts[from];
+        rights[to] = rights[from];
+        users[to] = users[from];
+        groups[to] = groups[from];
+        paths[to] = paths[from];
+    }
+
+    /**
+     * Merges the overlay into the arrays from the back, so every entry is moved at most once.
+     */
+    void mergePending() {
+        if (pending.isEmpty())
+            return;
+        int newSize = size + pending.size();
+        ensureCapacity(newSize);
+
+        int source = size - 1;
+        int target = newSize - 1;
+        for (Map.Entry<Integer, IndexFile> pendingEntry : pending.descendingMap().entrySet()) {
+            int hash = pendingEntry.getKey();
+            while (source >= 0 && hashes[source] > hash)
+                move(source--, target--);
+            set(target--, pendingEntry.getValue());
+        }
+        size = newSize;
+        pending.clear();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= hashes.length)
+            return;
+        int newCapacity = Math.max(capacity, hashes.length + (hashes.length >> 1));
+        hashes = Arrays.copyOf(hashes, newCapacity);
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+        times = Arrays.copyOf(times, newCapacity);
+        parts = Arrays.copyOf(parts, newCapacity);
+        rights = Arrays.copyOf(rights, newCapacity);
+        users = Arrays.copyOf(users, newCapacity);
+        groups = Arrays.copyOf(groups, newCapacity);
+        paths = Arrays.copyOf(paths, newCapacity);
+    }
+}
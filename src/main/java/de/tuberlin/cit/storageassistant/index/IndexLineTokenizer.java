@@ -0,0 +1,175 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses an _index line in a single pass over its UTF-8 bytes, without regular expressions and without
+ * splitting the line into intermediate Strings. Numbers are parsed digit by digit and the %2F separators of
+ * the path are decoded in place, so the line buffer passed in is modified.
+ *
+ * Lines contain the same few part names, permissions, owners and groups over and over, so the last value of
+ * each of these columns is remembered and reused while the bytes are equal.
+ *
+ * %2Fpath%2Fto%2Ffile file part-0 offset length time+rights+user+group
+ * %2Fpath%2Fto%2Fdir dir time+rights+user+group 0 0 child1 child2
+ */
+class IndexLineTokenizer {
+    private static final byte[] TYPE_FILE = IndexEntry.TYPE_FILE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_DIRECTORY = IndexEntry.TYPE_DIRECTORY.getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] line;
+    private int position;
+    private int end;
+
+    private final RecentValue part = new RecentValue();
+    private final RecentValue rights = new RecentValue();
+    private final RecentValue user = new RecentValue();
+    private final RecentValue group = new RecentValue();
+
+    /**
+     * @param line   buffer holding the line without its line break, the path is decoded within it
+     * @param length number of bytes of the line
+     * @throws IllegalArgumentException if the line is not a file or directory entry
+     */
+    IndexEntry parse(byte[] line, int length) {
+        this.line = line;
+        this.position = 0;
+        this.end = length;
+
+        String path = nextPath();
+        int typeStart = position;
+        int typeEnd = skipTo(' ');
+        if (matches(typeStart, typeEnd, TYPE_FILE))
+            return parseFile(path);
+        if (matches(typeStart, typeEnd, TYPE_DIRECTORY))
+            return parseDirectory(path);
+        throw malformed();
+    }
+
+    private IndexFile parseFile(String path) {
+        String part = this.part.get(line, position, skipTo(' '));
+        long offset = nextLong(' ');
+        long length = nextLong(' ');
+        long time = nextLong('+');
+        String rights = this.rights.get(line, position, skipTo('+'));
+        String user = this.user.get(line, position, skipTo('+'));
+        String group = this.group.get(line, position, skipTo(' '));
+        return new IndexFile(path, part, offset, length, time, rights, user, group);
+    }
+
+    private IndexDirectory parseDirectory(String path) {
+        long time = nextLong('+');
+        String rights = this.rights.get(line, position, skipTo('+'));
+        String user = this.user.get(line, position, skipTo('+'));
+        String group = this.group.get(line, position, skipTo(' '));
+        IndexDirectory directory = new IndexDirectory(path, time, rights, user, group);
+
+        skipTo(' '); // offset and length are 0 for directories
+        skipTo(' ');
+        while (position < end) {
+            int start = position;
+            int childEnd = skipTo(' ');
+            if (childEnd > start)
+                directory.addChild(new String(line, start, childEnd - start, StandardCharsets.UTF_8));
+        }
+        return directory;
+    }
+
+    /**
+     * Reads the first column and replaces every %2F with '/' while moving the bytes to the front.
+     */
+    private String nextPath() {
+        int write = position;
+        while (position < end && line[position] != ' ') {
+            if (line[position] == '%' && position + 2 < end && line[position + 1] == '2'
+                    && (line[position + 2] == 'F' || line[position + 2] == 'f')) {
+                line[write++] = '/';
+                position += 3;
+            } else {
+                line[write++] = line[position++];
+            }
+        }
+        if (position == end)
+            throw malformed();
+        position++;
+        return new String(line, 0, write, StandardCharsets.UTF_8);
+    }
+
+    private long nextLong(char separator) {
+        int start = position;
+        int tokenEnd = skipTo(separator);
+        int i = start;
+        boolean negative = i < tokenEnd && line[i] == '-';
+        if (negative)
+            i++;
+        if (i == tokenEnd)
+            throw malformed();
+
+        // accumulate negatively like Long.parseLong, so Long.MIN_VALUE can be parsed as well
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+                throw malformed();
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE)
+            throw malformed();
+        return negative ? value : -value;
+    }
+
+    /**
+     * Moves behind the next separator or to the end of the line.
+     *
+     * @return end of the token that started at the current position
+     */
+    private int skipTo(char separator) {
+        while (position < end && line[position] != separator)
+            position++;
+        int tokenEnd = position;
+        if (position < end)
+            position++;
+        return tokenEnd;
+    }
+
+    private boolean matches(int start, int tokenEnd, byte[] expected) {
+        if (tokenEnd - start != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (line[start + i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    private IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed index line: "
+                + new String(line, 0, end, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The last String decoded for a column, together with the bytes it was decoded from.
+     */
+    private static class RecentValue {
+        private byte[] bytes = new byte[0];
+        private String value;
+
+        String get(byte[] line, int start, int end) {
+            int length = end - start;
+            if (value == null || length != bytes.length || !equalBytes(line, start)) {
+                bytes = Arrays.copyOfRange(line, start, end);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        private boolean equalBytes(byte[] line, int start) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (line[start + i] != bytes[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Parses an _index file entry by entry while it is read from the stream. Only a fixed read buffer and the
+ * current line are kept in memory, so the memory needed does not grow with the size of the index.
+ *
+ * To read a single partition, pass a stream that is positioned at its start and limited to its length.
+ */
+public class IndexReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] line = new byte[512];
+    private int lineLength = 0;
+    private final IndexLineTokenizer tokenizer = new IndexLineTokenizer();
+
+    public IndexReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next entry or null once the end of the stream is reached
+     * @throws IOException
+     */
+    public IndexEntry next() throws IOException {
+        while (readLine()) {
+            if (lineLength > 0)
+                return tokenizer.parse(line, lineLength);
+        }
+        return null;
+    }
+
+    /**
+     * Reads up to the next '\n' into {@link #line}.
+     *
+     * @return false if the stream ended before any byte of a new line was read
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean readAnything = false;
+        while (true) {
+            if (position == limit && !fill())
+                return readAnything;
+            readAnything = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n')
+                position++;
+            appendToLine(start, position - start);
+
+            if (position < limit) { // found the line break
+                position++;
+                return true;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0)
+            return false;
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private void appendToLine(int offset, int length) {
+        if (lineLength + length > line.length)
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        System.arraycopy(buffer, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -4,46 +4,82 @@ import org.apache.hadoop.fs.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * Created by joh-mue on 13/02/17.
  */
 public class IndexWriteObserver {
     private ArrayList<MasterIndexEntry> masterIndexEntries = new ArrayList<>();
+    private BitSet copiedPartitions = new BitSet();
     private int indexPartitionSize;
+    private long indexPartitionBytes;
     private Path harPath;
     private FileSystem fs;
     private int linesWritten = 0;
     private int startHash = 0;
     private long startPos = 0;
+    private int lastHash = 0;
+    private long lastPos = 0;
+    private boolean partitionFull = false;
 
-    public IndexWriteObserver(int indexPartitionSize, Path harPath, FileSystem fs) {
+    /**
+     * @param indexPartitionSize  maximum number of lines per partition
+     * @param indexPartitionBytes maximum number of bytes per partition, 0 for no limit
+     */
+    public IndexWriteObserver(int indexPartitionSize, long indexPartitionBytes, Path harPath, FileSystem fs) {
         this.indexPartitionSize = indexPartitionSize;
+        this.indexPartitionBytes = indexPartitionBytes;
         this.harPath = harPath;
         this.fs = fs;
     }
 
+    /**
+     * A full partition is closed before the next line with a different hash, so lines with the same hash
+     * always end up in the same partition.
+     */
     public void lineWritten(int harHash, long streamPositionAfterWrite) {
+        if (partitionFull && harHash != lastHash)
+            closePartition();
         linesWritten++;
-        if (linesWritten == indexPartitionSize) { // every 1000 indexes we report status
-            MasterIndexEntry newMasterIndexEntry = createMasterIndexEntry(harHash, streamPositionAfterWrite);
-            masterIndexEntries.add(newMasterIndexEntry);
-        }
+        lastHash = harHash;
+        lastPos = streamPositionAfterWrite;
+        partitionFull = linesWritten >= indexPartitionSize
+                || indexPartitionBytes > 0 && lastPos - startPos >= indexPartitionBytes;
+    }
+
+    /**
+     * Reports a partition of the previous index that was copied unchanged. It keeps its own masterindex
+     * entry, only its position in the index may have moved.
+     *
+     * @param lastHash                 hash of the last line in the copied partition
+     * @param streamPositionAfterCopy position of the index stream after the partition was copied
+     */
+    public void partitionCopied(int lastHash, long streamPositionAfterCopy) {
+        closePartition();
+        copiedPartitions.set(masterIndexEntries.size());
+        masterIndexEntries.add(createMasterIndexEntry(lastHash, streamPositionAfterCopy));
     }
 
-    public void finalize(int harHash, long endOfIndexStreamPosition) {
-        MasterIndexEntry newMasterIndexEntry = createMasterIndexEntry(harHash, endOfIndexStreamPosition);
-        masterIndexEntries.add(newMasterIndexEntry);
+    /**
+     * Closes the last partition and writes the _masterindex to _masterindex.tmp, the index renames it once
+     * the _index is complete as well.
+     */
+    public void finish() throws IOException {
+        closePartition();
+        writeMasterindexToFile();
+    }
 
-        try {
-            writeMasterindexToFile();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void closePartition() {
+        if (linesWritten > 0) {
+            MasterIndexEntry newMasterIndexEntry = createMasterIndexEntry(lastHash, lastPos);
+            masterIndexEntries.add(newMasterIndexEntry);
         }
     }
 
     private void writeMasterindexToFile() throws IOException {
-        FSDataOutputStream masterindexOutStream = fs.create(new Path(harPath, "_masterindex"));
+        FSDataOutputStream masterindexOutStream = fs.create(new Path(harPath, "_masterindex.tmp"));
         masterindexOutStream.write("3 \n".getBytes()); // the first line contains the har-version
         for (MasterIndexEntry masterIndexEntry : masterIndexEntries) {
             masterindexOutStream.write(masterIndexEntry.getBytes());
@@ -61,7 +97,17 @@ public class IndexWriteObserver {
         startHash = lastHash;
         startPos = endPosition;
         this.linesWritten = 0;
+        this.partitionFull = false;
     }
 
+    public List<MasterIndexEntry> getMasterIndexEntries() {
+        return masterIndexEntries;
+    }
 
+    /**
+     * @return true if the partition was copied from the previous index instead of being written line by line
+     */
+    public boolean wasCopied(int partition) {
+        return copiedPartitions.get(partition);
+    }
 }
@@ -0,0 +1,263 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import de.tuberlin.cit.storageassistant.ArchiveLock;
+import de.tuberlin.cit.storageassistant.DFSUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-ahead journal of one change to an archive, kept as _journal in the archive directory while the
+ * change is under way. It records the length of every part file before the change. The new _index and
+ * _masterindex are written to temporary files, then the journal is marked as committing, and only then
+ * are the temporary files renamed over the old ones.
+ *
+ * {@link #recover(FileSystem, Path, ArchiveLock)} finishes or undoes a change that was interrupted, e.g. by a crash:
+ * <ul>
+ * <li>A committing change is rolled forward, the temporary index files that were not renamed yet are.</li>
+ * <li>Any other change is rolled back. Part files are truncated to their recorded length, part files that
+ * did not exist before are deleted, and so are the temporary index files. The _index was not replaced, so
+ * it still describes the truncated part files.</li>
+ * </ul>
+ * Writers recover before they change an archive, so an interrupted change never stays visible. The journal
+ * of a change that is still under way looks just like the journal of a crashed one, so
+ * {@link #begin(FileSystem, Path, ArchiveLock)} and {@link #recover(FileSystem, Path, ArchiveLock)} take the
+ * {@link ArchiveLock} of the archive and fail unless the caller still holds it.
+ *
+ * The journal is a small text file:
+ * <pre>
+ * ahar-journal 1
+ * part part-0 536870912
+ * part part-1 1048576
+ * committing
+ * </pre>
+ * Each version of it is written to a temporary file first and renamed into place.
+ */
+public class Journal {
+    private final static Logger log = Logger.getLogger(Journal.class);
+
+    /**
+     * Milliseconds recovery waits for the lease of a crashed writer on a part file to be released before
+     * truncating it.
+     */
+    public static final String RECOVERY_TIMEOUT_KEY = "ahar.journal.recovery.timeout.ms";
+    public static final long DEFAULT_RECOVERY_TIMEOUT = 120000;
+
+    private static final String HEADER = "ahar-journal 1";
+    private static final String COMMITTING = "committing";
+
+    private final FileSystem fs;
+    private final Path harPath;
+    private final ArchiveLock lock; // null for a journal opened to commit a change begun elsewhere
+    private final Map<String, Long> partLengths;
+    private boolean committing;
+
+    private Journal(FileSystem fs, Path harPath, ArchiveLock lock, Map<String, Long> partLengths,
+                    boolean committing) {
+        this.fs = fs;
+        this.harPath = harPath;
+        this.lock = lock;
+        this.partLengths = partLengths;
+        this.committing = committing;
+    }
+
+    public static Path pathOf(Path harPath) {
+        return new Path(harPath, "_journal");
+    }
+
+    /**
+     * Records the current length of every part file. Must be called before any part file is created or
+     * appended to.
+     *
+     * @param lock the lock of the archive, held by the caller
+     */
+    public static Journal begin(FileSystem fs, Path harPath, ArchiveLock lock) throws IOException {
+        lock.verify();
+        if (fs.exists(pathOf(harPath)))
+            throw new IOException(harPath + " has an unfinished change, recover it first");
+        Map<String, Long> partLengths = new LinkedHashMap<>();
+        for (FileStatus fileStatus : fs.listStatus(harPath)) {
+            if (fileStatus.getPath().getName().startsWith("part-"))
+                partLengths.put(fileStatus.getPath().getName(), fileStatus.getLen());
+        }
+        Journal journal = new Journal(fs, harPath, lock, partLengths, false);
+        journal.write();
+        return journal;
+    }
+
+    /**
+     * Opens the journal of a change begun by another process that holds the lock, e.g. to commit the index
+     * in a reduce task. The returned journal cannot {@link #abort(Exception)} the change.
+     *
+     * @return the journal of the archive's unfinished change, or null if there is none
+     */
+    public static Journal open(FileSystem fs, Path harPath) throws IOException {
+        Path path = pathOf(harPath);
+        if (!fs.exists(path))
+            return null;
+        String[] lines = DFSUtils.readLines(path, fs);
+        if (lines.length == 0 || !lines[0].equals(HEADER))
+            throw new IOException(path + " is no journal this version can recover");
+        Map<String, Long> partLengths = new LinkedHashMap<>();
+        boolean committing = false;
+        for (int i = 1; i < lines.length; i++) {
+            String[] tokens = lines[i].trim().split(" ");
+            if (tokens[0].equals("part") && tokens.length == 3)
+                partLengths.put(tokens[1], Long.parseLong(tokens[2]));
+            else if (tokens[0].equals(COMMITTING))
+                committing = true;
+            else if (!tokens[0].isEmpty())
+                throw new IOException(path + " has an unknown line: " + lines[i]);
+        }
+        return new Journal(fs, harPath, null, partLengths, committing);
+    }
+
+    /**
+     * Finishes or undoes an interrupted change of the archive, if there is one. Only the holder of the lock
+     * may do so, otherwise it would undo the change of a writer that is still at work.
+     *
+     * @param lock the lock of the archive, held by the caller
+     * @return true if there was a change to recover
+     */
+    public static boolean recover(FileSystem fs, Path harPath, ArchiveLock lock) throws IOException {
+        lock.verify();
+        Journal journal = open(fs, harPath);
+        if (journal == null)
+            return false;
+        if (journal.committing) {
+            log.warn("Completing the interrupted commit of " + harPath);
+            publishIndex(fs, harPath);
+        } else {
+            log.warn("Rolling back the interrupted change of " + harPath);
+            journal.rollBack();
+        }
+        journal.finish();
+        return true;
+    }
+
+    /**
+     * Marks the change as committing. Called once the temporary index files are complete, from then on
+     * recovery renames them instead of rolling the change back.
+     */
+    void committing() throws IOException {
+        committing = true;
+        write();
+    }
+
+    /**
+     * Renames the temporary _index and _masterindex over the old ones. Each file is replaced atomically.
+     */
+    static void publishIndex(FileSystem fs, Path harPath) throws IOException {
+        for (String name : new String[]{"_index", "_masterindex"}) {
+            Path temporary = new Path(harPath, name + ".tmp");
+            if (fs.exists(temporary))
+                DFSUtils.replaceFile(fs, temporary, new Path(harPath, name));
+        }
+    }
+
+    /**
+     * Recovers right away after the change failed: rolls it back, or forward if it was committing already.
+     * If that fails as well the journal stays for the next writer to recover.
+     *
+     * @param failure the reason the change failed, problems during recovery are added to it
+     */
+    public void abort(Exception failure) {
+        if (lock == null) {
+            failure.addSuppressed(new IOException("The change of " + harPath + " is recovered by the holder of "
+                    + "its lock"));
+            return;
+        }
+        try {
+            recover(fs, harPath, lock);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Ends the change, it is complete or was recovered.
+     */
+    public void finish() throws IOException {
+        fs.delete(pathOf(harPath), false);
+    }
+
+    private void rollBack() throws IOException {
+        long timeout = fs.getConf().getLong(RECOVERY_TIMEOUT_KEY, DEFAULT_RECOVERY_TIMEOUT);
+        for (FileStatus fileStatus : fs.listStatus(harPath)) {
+            String name = fileStatus.getPath().getName();
+            if (name.startsWith("part-")) {
+                Long length = partLengths.get(name);
+                if (length == null)
+                    fs.delete(fileStatus.getPath(), false);
+                else
+                    truncate(fileStatus.getPath(), length, timeout);
+            }
+        }
+        fs.delete(new Path(harPath, "_index.tmp"), false);
+        fs.delete(new Path(harPath, "_masterindex.tmp"), false);
+    }
+
+    /**
+     * Truncates a part file to the length it had before the change. If that is not possible, the appended
+     * bytes stay in the part file; no index entry points to them and a compaction removes them.
+     */
+    private void truncate(Path part, long length, long timeout) throws IOException {
+        try {
+            waitUntilClosed(part, timeout);
+            if (fs.getFileStatus(part).getLen() <= length)
+                return;
+            if (!fs.truncate(part, length))
+                waitUntilClosed(part, timeout);
+            log.info("Truncated " + part + " to " + length + " bytes");
+        } catch (UnsupportedOperationException | IOException e) {
+            log.warn("Unable to truncate " + part + " to " + length + " bytes, the bytes appended after it are "
+                    + "unreferenced until the archive is compacted", e);
+        }
+    }
+
+    /**
+     * Waits for a part file whose writer crashed to be closed by the NameNode. Other file systems have no
+     * leases.
+     */
+    private void waitUntilClosed(Path part, long timeout) throws IOException {
+        if (!(fs instanceof DistributedFileSystem))
+            return;
+        DistributedFileSystem dfs = (DistributedFileSystem) fs;
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean closed = dfs.recoverLease(part);
+        while (!closed && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + part + " to be closed", e);
+            }
+            closed = dfs.isFileClosed(part);
+        }
+        if (!closed)
+            throw new IOException(part + " is still open after " + timeout + " ms");
+    }
+
+    private void write() throws IOException {
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Long> part : partLengths.entrySet())
+            content.append("part ").append(part.getKey()).append(' ').append(part.getValue()).append('\n');
+        if (committing)
+            content.append(COMMITTING).append('\n');
+
+        Path temporary = new Path(harPath, "_journal.tmp");
+        try (FSDataOutputStream out = fs.create(temporary, true)) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            out.hsync();
+        }
+        DFSUtils.replaceFile(fs, temporary, pathOf(harPath));
+    }
+}
@@ -15,6 +15,35 @@ public class MasterIndexEntry {
         this.endPosition = endPosition;
     }
 
+    /**
+     * Parses a line of the form "firstHash lastHash startPosition endPosition ".
+     */
+    public static MasterIndexEntry parse(String line) {
+        String[] values = line.trim().split(" ");
+        return new MasterIndexEntry(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                Long.parseLong(values[2]), Long.parseLong(values[3]));
+    }
+
+    public int getFirstHash() {
+        return firstHash;
+    }
+
+    public int getLastHash() {
+        return lastHash;
+    }
+
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    public long getLength() {
+        return endPosition - startPosition;
+    }
+
     public byte[] getBytes() {
         return this.toString().getBytes(Charsets.UTF_8);
     }
@@ -0,0 +1,50 @@
+package de.tuberlin.cit.storageassistant.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the few distinct part names, owners, groups and permissions of an index to small int codes, so
+ * entries store a code instead of their own copy of the String.
+ */
+class StringDictionary {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<byte[]> encodedValues = new ArrayList<>();
+
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            values.add(value);
+            encodedValues.add(value.getBytes(StandardCharsets.UTF_8));
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    String decode(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * @return the value as UTF-8, encoded once when the value was added
+     */
+    byte[] bytes(int code) {
+        return encodedValues.get(code);
+    }
+
+    /**
+     * @return the instance of the value held by the dictionary
+     */
+    String intern(String value) {
+        return decode(encode(value));
+    }
+
+    int size() {
+        return values.size();
+    }
+}
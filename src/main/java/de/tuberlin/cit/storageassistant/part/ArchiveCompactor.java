@@ -0,0 +1,296 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.ArchiveLock;
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Repacks the live files of an archive into new, densely filled part files. Appends leave many part files
+ * that end within a block, and bytes of files whose index entry was replaced stay in their part file. After
+ * a compaction the archive consists of as few part files as its live bytes need, which means fewer blocks
+ * and less NameNode memory.
+ *
+ * Live files are copied in the order they lie in the old part files, so the old part files are read from
+ * front to back and files archived together stay together. A file that fits into a block does not cross a
+ * block boundary and a larger file starts at one, as long as that costs at most
+ * {@link PartFileManager#MAX_PADDING_KEY} zero bytes. A new part file is started once the current one
+ * holds {@link #PART_BLOCKS_KEY} blocks.
+ *
+ * The new part files get numbers after the existing ones. The _index and _masterindex are replaced only
+ * once all of them are written, and the old part files are deleted last. The compaction is recorded in a
+ * {@link Journal}, so recovering an interrupted compaction deletes the new part files if the index was not
+ * committed yet. Old part files left over after the commit are unreferenced and deleted by the next
+ * compaction.
+ *
+ * Nothing else may change the archive while it is compacted, the caller holds the archive's lock.
+ */
+public class ArchiveCompactor {
+    private final static Logger log = Logger.getLogger(ArchiveCompactor.class);
+
+    /**
+     * Number of blocks after which a new part file is started.
+     */
+    public static final String PART_BLOCKS_KEY = "ahar.compact.part.blocks";
+    public static final int DEFAULT_PART_BLOCKS = 16;
+
+    private final FileSystem fs;
+    private final Path harPath;
+    private final ArchiveLock lock;
+
+    /**
+     * @param lock the lock of the archive, held by the caller until the compaction returned
+     */
+    public ArchiveCompactor(FileSystem fs, Path harPath, ArchiveLock lock) {
+        this.fs = fs;
+        this.harPath = harPath;
+        this.lock = lock;
+    }
+
+    /**
+     * @return number of bytes the part files of the archive shrank by
+     */
+    public long compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        Configuration conf = fs.getConf();
+        Journal.recover(fs, harPath, lock);
+        List<FileStatus> oldParts = new ArrayList<>();
+        long oldBytes = 0;
+        for (FileStatus fileStatus : fs.listStatus(harPath)) {
+            if (fileStatus.getPath().getName().matches("part-\\d+")) {
+                oldParts.add(fileStatus);
+                oldBytes += fileStatus.getLen();
+            }
+        }
+        if (oldParts.isEmpty())
+            throw new IOException(harPath + " has no part files");
+
+        Index index = new Index(harPath, fs);
+        List<IndexFile> liveFiles = new ArrayList<>();
+        for (IndexFile file : index.getFileEntries())
+            liveFiles.add(file);
+        liveFiles.sort(Comparator.comparingInt((IndexFile file) -> partNumber(file.getPart()))
+                .thenComparingLong(IndexFile::getOffset));
+
+        long blockSize = PartFileManager.partFileBlockSize(fs, harPath);
+        Layout layout = new Layout(blockSize,
+                blockSize * Math.max(1, conf.getInt(PART_BLOCKS_KEY, DEFAULT_PART_BLOCKS)),
+                conf.getLong(PartFileManager.MAX_PADDING_KEY, PartFileManager.DEFAULT_MAX_PADDING),
+                PartFileManager.nextPartNumber(fs, harPath));
+        for (IndexFile file : liveFiles)
+            layout.place(file);
+        long newBytes = layout.bytes();
+        if (layout.newParts.size() >= oldParts.size() && newBytes >= oldBytes) {
+            log.info(harPath + " is compact already, " + oldParts.size() + " part files hold " + oldBytes
+                    + " bytes");
+            return 0;
+        }
+
+        Journal journal = Journal.begin(fs, harPath, lock);
+        try {
+            writeNewParts(layout.newParts, oldParts.get(0));
+            for (IndexFile file : liveFiles)
+                index.addEntry(layout.moved.get(file));
+            lock.verify();
+            index.writeToFile(journal);
+            for (FileStatus oldPart : oldParts)
+                fs.delete(oldPart.getPath(), false);
+        } catch (IOException | RuntimeException e) {
+            if (lock.isHeld()) // otherwise the client that broke the lock recovers
+                journal.abort(e);
+            throw e;
+        }
+        journal.finish();
+
+        log.info(String.format("Compacted %s from %d part files with %d bytes to %d part files with %d bytes "
+                        + "holding %d files in %.1f s", harPath, oldParts.size(), oldBytes, layout.newParts.size(),
+                newBytes, liveFiles.size(), (System.currentTimeMillis() - startTime) / 1000.0));
+        return oldBytes - newBytes;
+    }
+
+    /**
+     * @return the number of a part file name, names that are no numbered part file come first
+     */
+    private static int partNumber(String part) {
+        return part.matches("part-\\d+") ? Integer.parseInt(part.substring("part-".length())) : -1;
+    }
+
+    /**
+     * Writes the new part files concurrently, like {@link PartFileManager#writeAllToFile()} appends.
+     */
+    private void writeNewParts(List<NewPart> newParts, FileStatus template) throws IOException {
+        int threads = Math.max(1, Math.min(newParts.size(),
+                fs.getConf().getInt(PartFileManager.WRITE_THREADS_KEY, PartFileManager.DEFAULT_WRITE_THREADS)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<NewPart, Future<Long>> pendingWrites = new LinkedHashMap<>();
+        try {
+            for (NewPart newPart : newParts)
+                pendingWrites.put(newPart, executor.submit(() -> newPart.write(template)));
+            IOException failure = null;
+            for (Map.Entry<NewPart, Future<Long>> pendingWrite : pendingWrites.entrySet()) {
+                try {
+                    pendingWrite.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error("Unable to write " + pendingWrite.getKey().name, e.getCause());
+                    if (failure == null)
+                        failure = new IOException("Unable to write one or more compacted part files of " + harPath
+                                + ", the archive is unchanged");
+                    failure.addSuppressed(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while compacting " + harPath, e);
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Decides where every live file goes. Files sharing the same bytes, which an _index may list, are copied
+     * once.
+     */
+    private class Layout {
+        private final long blockSize;
+        private final long partBytes;
+        private final long maxPadding;
+        private int nextPartNumber;
+
+        private final List<NewPart> newParts = new ArrayList<>();
+        private final Map<IndexFile, IndexFile> moved = new HashMap<>();
+        private NewPart current;
+        private IndexFile previous;
+
+        Layout(long blockSize, long partBytes, long maxPadding, int nextPartNumber) {
+            this.blockSize = blockSize;
+            this.partBytes = partBytes;
+            this.maxPadding = maxPadding;
+            this.nextPartNumber = nextPartNumber;
+        }
+
+        void place(IndexFile file) {
+            if (previous != null && previous.getPart().equals(file.getPart())
+                    && previous.getOffset() == file.getOffset() && previous.getLength() == file.getLength()) {
+                moved.put(file, file.movedTo(current.name, moved.get(previous).getOffset()));
+                return;
+            }
+            if (current == null || current.size >= partBytes) {
+                current = new NewPart("part-" + nextPartNumber++);
+                newParts.add(current);
+            }
+
+            long spaceLeftInBlock = blockSize - current.size % blockSize;
+            boolean crossesBoundary = file.getLength() > spaceLeftInBlock && spaceLeftInBlock < blockSize;
+            if (crossesBoundary && spaceLeftInBlock <= maxPadding)
+                current.size += spaceLeftInBlock; // zeros written before the file
+            moved.put(file, file.movedTo(current.name, current.size));
+            current.add(file);
+            previous = file;
+        }
+
+        long bytes() {
+            long bytes = 0;
+            for (NewPart newPart : newParts)
+                bytes += newPart.size;
+            return bytes;
+        }
+    }
+
+    /**
+     * A new part file and the ranges of old part files it is made of, in order.
+     */
+    private class NewPart {
+        private final String name;
+        private final List<IndexFile> files = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private long size = 0;
+
+        NewPart(String name) {
+            this.name = name;
+        }
+
+        void add(IndexFile file) {
+            files.add(file);
+            offsets.add(size);
+            size += file.getLength();
+        }
+
+        /**
+         * Copies the files with one stream per old part file that is only moved forward while consecutive
+         * files come from the same old part file.
+         */
+        long write(FileStatus template) throws IOException {
+            int bufferSize = fs.getConf().getInt("io.file.buffer.size", 4096);
+            byte[] buffer = new byte[Math.max(bufferSize, 64 * 1024)];
+            Path path = new Path(harPath, name);
+            long written = 0;
+            FSDataInputStream in = null;
+            String inPart = null;
+            try (FSDataOutputStream out = fs.create(path, false, bufferSize, template.getReplication(),
+                    template.getBlockSize())) {
+                for (int i = 0; i < files.size(); i++) {
+                    IndexFile file = files.get(i);
+                    written += writeZeros(out, offsets.get(i) - written, buffer);
+                    if (!file.getPart().equals(inPart)) {
+                        if (in != null)
+                            in.close();
+                        in = fs.open(new Path(harPath, file.getPart()), bufferSize);
+                        inPart = file.getPart();
+                    }
+                    if (in.getPos() != file.getOffset())
+                        in.seek(file.getOffset());
+                    written += copy(in, out, file, buffer);
+                }
+            } finally {
+                if (in != null)
+                    in.close();
+            }
+            return written;
+        }
+
+        private long copy(FSDataInputStream in, OutputStream out, IndexFile file, byte[] buffer)
+                throws IOException {
+            long remaining = file.getLength();
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new EOFException(file.getPart() + " of " + harPath + " ends within " + file.getPath());
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            return file.getLength();
+        }
+
+        private long writeZeros(OutputStream out, long length, byte[] buffer) throws IOException {
+            if (length > 0)
+                Arrays.fill(buffer, (byte) 0);
+            for (long remaining = length; remaining > 0; remaining -= buffer.length)
+                out.write(buffer, 0, (int) Math.min(remaining, buffer.length));
+            return length;
+        }
+    }
+}
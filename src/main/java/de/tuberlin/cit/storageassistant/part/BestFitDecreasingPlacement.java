@@ -0,0 +1,49 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.fs.FileStatus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Places the files of a batch from the largest to the smallest, each into the part file with the least
+ * space left in its current block that still fits it. Files larger than a block span several blocks
+ * anyway; they continue the part file with the least space left instead of starting a new part file.
+ */
+class BestFitDecreasingPlacement implements PlacementStrategy {
+    protected final long blockSize;
+    protected final FreeSpaceMap freeSpace = new FreeSpaceMap();
+
+    BestFitDecreasingPlacement(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public List<FileStatus> order(List<FileStatus> inputFiles) {
+        List<FileStatus> largestFirst = new ArrayList<>(inputFiles);
+        largestFirst.sort(Comparator.comparingLong(FileStatus::getLen).reversed());
+        return largestFirst;
+    }
+
+    @Override
+    public void addPartFile(PartFile partFile) {
+        freeSpace.add(partFile);
+    }
+
+    @Override
+    public PartFile choosePartFile(FileStatus inputFile) {
+        if (inputFile.getLen() > blockSize)
+            return freeSpace.withLeastSpace();
+        return freeSpace.withSpaceAtLeast(inputFile.getLen());
+    }
+
+    @Override
+    public IndexFile addInputFile(PartFile partFile, FileStatus inputFile) {
+        freeSpace.remove(partFile);
+        IndexFile entry = partFile.addInputFile(inputFile);
+        freeSpace.add(partFile);
+        return entry;
+    }
+}
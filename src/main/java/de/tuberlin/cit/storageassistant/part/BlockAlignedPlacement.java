@@ -0,0 +1,47 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.fs.FileStatus;
+
+/**
+ * Best fit decreasing, but no file is split across more blocks than necessary: files larger than a block
+ * start at a block boundary, smaller files never cross one. A file that does not fit into the space left in
+ * any current block is appended to a part file that ends at a block boundary, or to the part file with the
+ * least space left if padding the rest of its block with zeros costs at most {@code maxPadding} bytes.
+ * Otherwise it starts a new part file.
+ */
+class BlockAlignedPlacement extends BestFitDecreasingPlacement {
+    private final long maxPadding;
+
+    BlockAlignedPlacement(long blockSize, long maxPadding) {
+        super(blockSize);
+        this.maxPadding = maxPadding;
+    }
+
+    @Override
+    public PartFile choosePartFile(FileStatus inputFile) {
+        if (inputFile.getLen() <= blockSize) {
+            PartFile bestFit = freeSpace.withSpaceAtLeast(inputFile.getLen());
+            if (bestFit != null)
+                return bestFit;
+        } else {
+            PartFile aligned = freeSpace.withMostSpace();
+            if (aligned != null && aligned.spaceLeftInBlock() == aligned.getBlockSize())
+                return aligned;
+        }
+        PartFile leastSpace = freeSpace.withLeastSpace();
+        if (leastSpace != null && leastSpace.spaceLeftInBlock() <= maxPadding)
+            return leastSpace;
+        return null;
+    }
+
+    @Override
+    public IndexFile addInputFile(PartFile partFile, FileStatus inputFile) {
+        if (partFile.canFit(inputFile))
+            return super.addInputFile(partFile, inputFile);
+        freeSpace.remove(partFile);
+        IndexFile entry = partFile.addInputFileAtBlockBoundary(inputFile);
+        freeSpace.add(partFile);
+        return entry;
+    }
+}
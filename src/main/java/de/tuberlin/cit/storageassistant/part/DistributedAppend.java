@@ -0,0 +1,394 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.ArchiveLock;
+import de.tuberlin.cit.storageassistant.DFSUtils;
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.IndexDirectory;
+import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Appends input files to an archive with a MapReduce job instead of copying them through the client, so the
+ * append throughput grows with the number of nodes.
+ *
+ * The client walks the input trees, skips files that are archived already and deals the new files out to
+ * {@link #MAPS_KEY} listings, each file to the listing with the fewest bytes so far. Every listing is copied
+ * by one mapper into a new part file behind the existing ones, so no two tasks write the same part file.
+ * The mappers emit the index lines of the copied files, and a single reducer merges them together with the
+ * directory entries found by the client into the _index and _masterindex, like {@link Index#writeToFile()}
+ * does for a local append.
+ *
+ * New part files are not referenced before the reducer writes the index. The append is recorded in a
+ * {@link Journal}: if the job fails before the reducer commits, the new part files are deleted again and the
+ * archive is unchanged; if it fails while the reducer commits, the commit is completed. The client holds the
+ * {@link ArchiveLock} while the job runs, and the reducer commits only while the lock still has the token the
+ * client took it with.
+ */
+public class DistributedAppend {
+    private final static Logger log = Logger.getLogger(DistributedAppend.class);
+
+    /**
+     * Maximum number of map tasks, each of them writes one new part file.
+     */
+    public static final String MAPS_KEY = "ahar.distributed.maps";
+    public static final int DEFAULT_MAPS = 16;
+
+    private static final String HAR_PATH_KEY = "ahar.distributed.har.path";
+    private static final String STAGING_PATH_KEY = "ahar.distributed.staging.path";
+    private static final String LOCK_TOKEN_KEY = "ahar.distributed.lock.token";
+    private static final String LISTINGS = "listings";
+    private static final String DIRECTORIES = "directories";
+
+    enum Counters {FILES_COPIED, BYTES_COPIED, DUPLICATE_FILES}
+
+    private final FileSystem fs;
+    private final Path harPath;
+    private final ArchiveLock lock;
+
+    /**
+     * @param lock the lock of the archive, held by the caller until the append returned
+     */
+    public DistributedAppend(FileSystem fs, Path harPath, ArchiveLock lock) {
+        this.fs = fs;
+        this.harPath = harPath;
+        this.lock = lock;
+    }
+
+    /**
+     * Adds the input paths to the archive and returns once the job finished and the index was written.
+     *
+     * @throws IOException if the job failed, the archive is left as it was unless the index was written
+     */
+    public void addFiles(Path[] inputPaths) throws IOException {
+        Path stagingPath = new Path(harPath, "_append-" + System.currentTimeMillis());
+        Journal.recover(fs, harPath, lock);
+        Journal journal = Journal.begin(fs, harPath, lock);
+        try {
+            List<Path> newPartFiles = writeJobInput(inputPaths, stagingPath);
+            lock.verify();
+            if (!runJob(stagingPath, newPartFiles.size()))
+                throw new IOException("Distributed append to " + harPath + " failed");
+        } catch (IOException | RuntimeException e) {
+            if (lock.isHeld()) // otherwise the client that broke the lock recovers
+                journal.abort(e);
+            throw e;
+        } finally {
+            fs.delete(stagingPath, true);
+        }
+        journal.finish();
+    }
+
+    /**
+     * Walks the input paths and writes the listings for the mappers and the directory entries for the
+     * reducer into the staging directory. Listings are named after the part file their mapper creates.
+     *
+     * @return the part files the job creates
+     */
+    private List<Path> writeJobInput(Path[] inputPaths, Path stagingPath) throws IOException {
+        Configuration conf = fs.getConf();
+        Index archived = Index.loadPartially(harPath, fs);
+        MetadataCache metadata = new MetadataCache(fs);
+        int maps = Math.max(1, conf.getInt(MAPS_KEY, DEFAULT_MAPS));
+        int threads = Math.max(1, conf.getInt(PartFileManager.SCAN_THREADS_KEY, PartFileManager.DEFAULT_SCAN_THREADS));
+
+        JobInput jobInput = new JobInput(archived, stagingPath, maps);
+        try (InputScanner scanner = new InputScanner(metadata, threads)) {
+            for (Path path : inputPaths)
+                addParentDirectories(path, metadata, jobInput);
+            List<FileStatus> roots = new ArrayList<>();
+            for (Path path : inputPaths)
+                roots.add(metadata.getFileStatus(path));
+            scanner.scan(roots, jobInput);
+        } finally {
+            jobInput.close();
+        }
+        return jobInput.nameListingsAfterPartFiles(PartFileManager.nextPartNumber(fs, harPath));
+    }
+
+    private void addParentDirectories(Path path, MetadataCache metadata, JobInput jobInput) throws IOException {
+        Path current = fs.makeQualified(path);
+        while (!current.isRoot()) {
+            Path parent = current.getParent();
+            IndexDirectory entry = new IndexDirectory(metadata.getFileStatus(parent));
+            entry.addChild(current.getName());
+            jobInput.writeDirectory(entry);
+            current = parent;
+        }
+    }
+
+    private boolean runJob(Path stagingPath, int maps) throws IOException {
+        Job job = Job.getInstance(fs.getConf(), "ahar append to " + harPath);
+        job.setJarByClass(DistributedAppend.class);
+        Configuration jobConf = job.getConfiguration();
+        jobConf.set(HAR_PATH_KEY, fs.makeQualified(harPath).toString());
+        jobConf.set(STAGING_PATH_KEY, fs.makeQualified(stagingPath).toString());
+        jobConf.set(LOCK_TOKEN_KEY, lock.getToken());
+
+        job.setInputFormatClass(ListingInputFormat.class);
+        FileInputFormat.setInputPaths(job, new Path(stagingPath, LISTINGS));
+        job.setMapperClass(PartFileMapper.class);
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(Text.class);
+        job.setMapSpeculativeExecution(false);
+        job.setReducerClass(IndexMergeReducer.class);
+        job.setNumReduceTasks(1);
+        job.setReduceSpeculativeExecution(false);
+        job.setOutputFormatClass(NullOutputFormat.class);
+
+        log.info("Starting " + maps + " map tasks to append to " + harPath);
+        try {
+            return job.waitForCompletion(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the append to " + harPath, e);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to start the append to " + harPath, e);
+        }
+    }
+
+    /**
+     * Receives the found directories and files from the {@link InputScanner} and writes them into the
+     * staging directory.
+     */
+    private class JobInput implements InputScanner.Listener {
+        private final Index archived;
+        private final Path listingsPath;
+        private final PriorityQueue<Listing> listings =
+                new PriorityQueue<>(Comparator.comparingLong((Listing listing) -> listing.bytes));
+        private final Writer directories;
+
+        JobInput(Index archived, Path stagingPath, int maps) throws IOException {
+            this.archived = archived;
+            this.listingsPath = new Path(stagingPath, LISTINGS);
+            this.directories = createWriter(new Path(stagingPath, DIRECTORIES));
+            for (int i = 0; i < maps; i++)
+                listings.add(new Listing(new Path(listingsPath, "listing-" + i)));
+        }
+
+        private Writer createWriter(Path path) throws IOException {
+            FSDataOutputStream out = fs.create(path);
+            return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void directoryFound(FileStatus directory, List<FileStatus> children) throws IOException {
+            IndexDirectory entry = new IndexDirectory(directory);
+            entry.addChildren(children);
+            writeDirectory(entry);
+        }
+
+        void writeDirectory(IndexDirectory entry) throws IOException {
+            directories.write(entry.toString());
+            directories.write('\n');
+        }
+
+        /**
+         * Files reached through more than one input path are listed more than once; the reducer keeps one
+         * of their copies.
+         */
+        @Override
+        public void fileFound(FileStatus file) throws IOException {
+            if (archived.containsEntryFor(file))
+                return;
+            Listing listing = listings.poll();
+            listing.add(file);
+            listings.add(listing);
+        }
+
+        /**
+         * Renames the listings that got files to part-n, part-n+1, ... and deletes the empty ones.
+         *
+         * @return the part files the mappers of the listings create
+         */
+        List<Path> nameListingsAfterPartFiles(int firstPartNumber) throws IOException {
+            List<Path> partFiles = new ArrayList<>();
+            for (Listing listing : listings) {
+                if (listing.files == 0) {
+                    fs.delete(listing.path, false);
+                    continue;
+                }
+                String partName = "part-" + (firstPartNumber + partFiles.size());
+                if (!fs.rename(listing.path, new Path(listingsPath, partName)))
+                    throw new IOException("Unable to rename " + listing.path + " to " + partName);
+                partFiles.add(new Path(harPath, partName));
+            }
+            return partFiles;
+        }
+
+        void close() throws IOException {
+            directories.close();
+            for (Listing listing : listings)
+                listing.writer.close();
+        }
+
+        private class Listing {
+            private final Path path;
+            private final Writer writer;
+            private long bytes = 0;
+            private int files = 0;
+
+            Listing(Path path) throws IOException {
+                this.path = path;
+                this.writer = createWriter(path);
+            }
+
+            /**
+             * Lists the metadata the index entry needs along with the path, so mappers need not look the
+             * file up again: length, modification time, permission, owner, group and path, the path last as it
+             * may hold spaces.
+             */
+            void add(FileStatus file) throws IOException {
+                writer.write(file.getLen() + " " + file.getModificationTime() + " "
+                        + file.getPermission().toShort() + " " + file.getOwner() + " " + file.getGroup() + " "
+                        + file.getPath() + "\n");
+                bytes += file.getLen();
+                files++;
+            }
+        }
+    }
+
+    /**
+     * Hands every listing to one mapper as a whole.
+     */
+    public static class ListingInputFormat extends TextInputFormat {
+        @Override
+        protected boolean isSplitable(JobContext context, Path file) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies the files of one listing into a new part file named like the listing and emits their index
+     * lines keyed by har hash. The metadata of the files comes from the listing, the NameNode is only asked to
+     * open them. The part file is created anew by every attempt, so a retried task starts from an empty part
+     * file.
+     */
+    public static class PartFileMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
+        private PartFile partFile;
+        private final List<IndexFile> entries = new ArrayList<>();
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            Path harPath = new Path(conf.get(HAR_PATH_KEY));
+            FileSystem fs = harPath.getFileSystem(conf);
+            Path partPath = new Path(harPath, ((FileSplit) context.getInputSplit()).getPath().getName());
+            fs.create(partPath, true).close();
+            FileStatus partFileStatus = fs.getFileStatus(partPath);
+            partFile = new PartFile(partFileStatus, partFileStatus.getBlockSize(), fs);
+        }
+
+        @Override
+        protected void map(LongWritable offset, Text listedFile, Context context) throws IOException {
+            String[] fields = listedFile.toString().split(" ", 6);
+            if (fields.length < 6)
+                throw new IOException("Malformed listing line: " + listedFile);
+            FileStatus fileStatus = new FileStatus(Long.parseLong(fields[0]), false, 0, 0,
+                    Long.parseLong(fields[1]), 0, new FsPermission(Short.parseShort(fields[2])), fields[3],
+                    fields[4], new Path(fields[5]));
+            entries.add(partFile.addInputFile(fileStatus));
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            int readAheadDepth = Math.max(0, conf.getInt(PartFileManager.READ_AHEAD_FILES_KEY,
+                    PartFileManager.DEFAULT_READ_AHEAD_FILES));
+            ReadAheadBudget budget = new ReadAheadBudget(conf.getLong(PartFileManager.READ_AHEAD_BYTES_KEY,
+                    PartFileManager.DEFAULT_READ_AHEAD_BYTES));
+            long bytesCopied = partFile.writeToFile(readAheadDepth, budget, context);
+            context.getCounter(Counters.FILES_COPIED).increment(entries.size());
+            context.getCounter(Counters.BYTES_COPIED).increment(bytesCopied);
+
+            IntWritable harHash = new IntWritable();
+            Text line = new Text();
+            for (IndexFile entry : entries) {
+                harHash.set(entry.getHarHash());
+                line.set(entry.toString());
+                context.write(harHash, line);
+            }
+        }
+    }
+
+    /**
+     * Merges the index lines of all mappers and the directory entries found by the client into the index of
+     * the archive. Lines arrive sorted by har hash, so the partitions of the index are loaded in order.
+     */
+    public static class IndexMergeReducer extends Reducer<IntWritable, Text, IntWritable, Text> {
+        private FileSystem fs;
+        private Path harPath;
+        private String lockToken;
+        private Index index;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            harPath = new Path(conf.get(HAR_PATH_KEY));
+            Path stagingPath = new Path(conf.get(STAGING_PATH_KEY));
+            lockToken = conf.get(LOCK_TOKEN_KEY);
+            fs = harPath.getFileSystem(conf);
+            index = Index.loadPartially(harPath, fs);
+            try (IndexReader directories = new IndexReader(fs.open(new Path(stagingPath, DIRECTORIES)))) {
+                IndexEntry entry;
+                while ((entry = directories.next()) != null)
+                    index.addEntry((IndexDirectory) entry);
+            }
+        }
+
+        /**
+         * A file listed more than once was copied more than once; only the first copy is referenced.
+         */
+        @Override
+        protected void reduce(IntWritable harHash, Iterable<Text> lines, Context context) throws IOException {
+            boolean first = true;
+            for (Text line : lines) {
+                if (first)
+                    index.addEntry((IndexFile) IndexEntry.parse(line.toString()));
+                else
+                    context.getCounter(Counters.DUPLICATE_FILES).increment(1);
+                first = false;
+            }
+        }
+
+        /**
+         * Commits through the journal the client began, so a failing job does not delete part files the new
+         * index may already reference. Fails instead if the client lost the lock, a client that broke it may
+         * have rolled the append back already.
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            ArchiveLock.verify(fs, harPath, lockToken);
+            index.writeToFile(Journal.open(fs, harPath));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.fs.FileStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends an input file to the first part file, in the order they were registered, that has enough space
+ * left in its current block. Files that fit nowhere, which includes every file larger than a block, get a
+ * new part file.
+ *
+ * Instead of scanning all part files per input file, the space left is kept in a tree where every node holds
+ * the maximum of its children, so the first part file with enough space is found in O(log parts).
+ */
+class FirstFitPlacement implements PlacementStrategy {
+    private final List<PartFile> partFiles = new ArrayList<>();
+    private final Map<PartFile, Integer> positions = new IdentityHashMap<>();
+
+    private int leaves = 1;
+    private long[] maxSpaceLeft = newTree(leaves);
+
+    @Override
+    public void addPartFile(PartFile partFile) {
+        int position = partFiles.size();
+        if (position == leaves)
+            grow();
+        partFiles.add(partFile);
+        positions.put(partFile, position);
+        update(position, partFile.spaceLeftInBlock());
+    }
+
+    @Override
+    public PartFile choosePartFile(FileStatus inputFile) {
+        long length = inputFile.getLen();
+        if (maxSpaceLeft[1] < length)
+            return null;
+        int node = 1;
+        while (node < leaves)
+            node = maxSpaceLeft[2 * node] >= length ? 2 * node : 2 * node + 1;
+        return partFiles.get(node - leaves);
+    }
+
+    @Override
+    public IndexFile addInputFile(PartFile partFile, FileStatus inputFile) {
+        IndexFile entry = partFile.addInputFile(inputFile);
+        update(positions.get(partFile), partFile.spaceLeftInBlock());
+        return entry;
+    }
+
+    private void update(int position, long spaceLeft) {
+        int node = leaves + position;
+        maxSpaceLeft[node] = spaceLeft;
+        for (node /= 2; node >= 1; node /= 2)
+            maxSpaceLeft[node] = Math.max(maxSpaceLeft[2 * node], maxSpaceLeft[2 * node + 1]);
+    }
+
+    private void grow() {
+        leaves *= 2;
+        maxSpaceLeft = newTree(leaves);
+        for (int position = 0; position < partFiles.size(); position++)
+            update(position, partFiles.get(position).spaceLeftInBlock());
+    }
+
+    /**
+     * Unused leaves hold -1, so they never fit a file, not even an empty one.
+     */
+    private static long[] newTree(int leaves) {
+        long[] tree = new long[2 * leaves];
+        Arrays.fill(tree, -1);
+        return tree;
+    }
+}
@@ -0,0 +1,43 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Part files sorted by the space left in their current block. Part files with the same space left are
+ * returned in the order they were added. A part file has to be removed before it is changed and added again
+ * afterwards.
+ */
+class FreeSpaceMap {
+    private final TreeMap<Long, ArrayDeque<PartFile>> partFilesBySpace = new TreeMap<>();
+
+    void add(PartFile partFile) {
+        partFilesBySpace.computeIfAbsent(partFile.spaceLeftInBlock(), space -> new ArrayDeque<>()).addLast(partFile);
+    }
+
+    void remove(PartFile partFile) {
+        long space = partFile.spaceLeftInBlock();
+        ArrayDeque<PartFile> partFiles = partFilesBySpace.get(space);
+        if (partFiles != null && partFiles.remove(partFile) && partFiles.isEmpty())
+            partFilesBySpace.remove(space);
+    }
+
+    /**
+     * @return the part file with the least space left that still has at least the given space left
+     */
+    PartFile withSpaceAtLeast(long space) {
+        Map.Entry<Long, ArrayDeque<PartFile>> entry = partFilesBySpace.ceilingEntry(space);
+        return entry == null ? null : entry.getValue().peekFirst();
+    }
+
+    PartFile withLeastSpace() {
+        Map.Entry<Long, ArrayDeque<PartFile>> entry = partFilesBySpace.firstEntry();
+        return entry == null ? null : entry.getValue().peekFirst();
+    }
+
+    PartFile withMostSpace() {
+        Map.Entry<Long, ArrayDeque<PartFile>> entry = partFilesBySpace.lastEntry();
+        return entry == null ? null : entry.getValue().peekFirst();
+    }
+}
@@ -0,0 +1,144 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import org.apache.hadoop.fs.FileStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks input trees with a bounded pool of listing threads, so sibling directories are listed concurrently
+ * instead of one NameNode round trip after the other. The pool size bounds the number of concurrent listing
+ * requests.
+ *
+ * The listing threads only talk to the file system. Every directory and file found is handed to the
+ * {@link Listener} on the thread that called {@link #scan}, so the listener can update structures that are
+ * not thread-safe, like the index. Directories are reported in no particular order; a directory is always
+ * reported before its children.
+ *
+ * Listings are handed over through a queue of as many listings as there are threads, so listing threads
+ * wait for a listener that falls behind instead of piling up listings. Directories waiting to be listed are
+ * only kept as their file statuses.
+ */
+class InputScanner implements Closeable {
+    private final MetadataCache metadata;
+    private final ExecutorService listingThreads;
+    private final BlockingQueue<Listing> listings;
+
+    private int directories = 0;
+    private int files = 0;
+
+    interface Listener {
+        void directoryFound(FileStatus directory, List<FileStatus> children) throws IOException;
+
+        void fileFound(FileStatus file) throws IOException;
+    }
+
+    InputScanner(MetadataCache metadata, int threads) {
+        this.metadata = metadata;
+        this.listings = new ArrayBlockingQueue<>(threads);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.listingThreads = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ahar-scan-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reports the roots and everything below them to the listener and returns once the trees were walked
+     * completely.
+     *
+     * @throws IOException if a directory could not be listed or the listener failed
+     */
+    void scan(List<FileStatus> roots, Listener listener) throws IOException {
+        int outstandingListings = 0;
+        for (FileStatus root : roots)
+            outstandingListings += visit(root, listener);
+
+        while (outstandingListings > 0) {
+            Listing listing = takeListing();
+            outstandingListings--;
+            if (listing.failure != null)
+                throw listing.failure;
+
+            directories++;
+            listener.directoryFound(listing.directory, listing.children);
+            for (FileStatus child : listing.children)
+                outstandingListings += visit(child, listener);
+        }
+    }
+
+    /**
+     * @return number of listings started
+     */
+    private int visit(FileStatus fileStatus, Listener listener) throws IOException {
+        if (fileStatus.isDirectory()) {
+            listingThreads.execute(() -> handOver(list(fileStatus)));
+            return 1;
+        }
+        if (fileStatus.isFile()) {
+            files++;
+            listener.fileFound(fileStatus);
+        }
+        return 0;
+    }
+
+    private Listing list(FileStatus directory) {
+        try {
+            return new Listing(directory, metadata.listStatus(directory.getPath()), null);
+        } catch (IOException e) {
+            return new Listing(directory, null, e);
+        } catch (RuntimeException e) {
+            return new Listing(directory, null, new IOException("Unable to list " + directory.getPath(), e));
+        }
+    }
+
+    private void handOver(Listing listing) {
+        try {
+            listings.put(listing);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // the scanner was closed
+        }
+    }
+
+    private Listing takeListing() throws InterruptedIOException {
+        try {
+            return listings.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning the input directories");
+        }
+    }
+
+    int getDirectories() {
+        return directories;
+    }
+
+    int getFiles() {
+        return files;
+    }
+
+    @Override
+    public void close() {
+        listingThreads.shutdownNow();
+    }
+
+    private static class Listing {
+        private final FileStatus directory;
+        private final List<FileStatus> children;
+        private final IOException failure;
+
+        Listing(FileStatus directory, List<FileStatus> children, IOException failure) {
+            this.directory = directory;
+            this.children = children;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoizes the file statuses looked up during one add operation, so parent directories shared by the input
+ * paths are looked up once. Only statuses fetched by {@link #getFileStatus(Path)} or handed in by
+ * {@link #put(FileStatus)} are kept, which are the input paths and their parents. Listings are not kept, so
+ * the memory of a scan does not grow with the size of the input trees. Safe to use from several threads.
+ *
+ * The cache is meant to live as long as one add; it does not notice changes made to the file system later.
+ */
+class MetadataCache {
+    private final FileSystem fs;
+    private final Map<Path, FileStatus> statuses = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    MetadataCache(FileSystem fs) {
+        this.fs = fs;
+    }
+
+    FileStatus getFileStatus(Path path) throws IOException {
+        Path qualifiedPath = fs.makeQualified(path);
+        FileStatus status = statuses.get(qualifiedPath);
+        if (status == null) {
+            requests.incrementAndGet();
+            status = fs.getFileStatus(qualifiedPath);
+            statuses.put(qualifiedPath, status);
+        }
+        return status;
+    }
+
+    /**
+     * Keeps a status the caller looked up already, so it is not requested again.
+     */
+    void put(FileStatus status) {
+        statuses.put(fs.makeQualified(status.getPath()), status);
+    }
+
+    /**
+     * Lists the directory through {@link FileSystem#listStatusIterator(Path)}, which fetches large
+     * directories in pages instead of in one response.
+     *
+     * @return the children of the directory, in the order the file system lists them
+     */
+    List<FileStatus> listStatus(Path directory) throws IOException {
+        requests.incrementAndGet();
+        List<FileStatus> children = new ArrayList<>();
+        RemoteIterator<FileStatus> iterator = fs.listStatusIterator(fs.makeQualified(directory));
+        while (iterator.hasNext())
+            children.add(iterator.next());
+        return children;
+    }
+
+    /**
+     * @return number of getFileStatus and listing requests sent to the file system
+     */
+    int getRequests() {
+        return requests.get();
+    }
+}
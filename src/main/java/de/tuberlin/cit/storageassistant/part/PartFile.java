@@ -1,19 +1,30 @@
 package de.tuberlin.cit.storageassistant.part;
 
 import de.tuberlin.cit.storageassistant.index.IndexFile;
-import org.apache.hadoop.fs.*;
-import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.util.Progressable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PartFile {
+    private static final int PADDING_BUFFER_SIZE = 64 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private FileSystem fs;
     private FileStatus partFileStatus;
     private Long partFileSize; // original partfile + all added files
     private List<FileStatus> filesToAdd = new ArrayList<>();
+    private Map<Integer, Long> paddingBeforeFile = new HashMap<>(); // index in filesToAdd -> zero bytes
     private Long blockSize;
+    private FSDataOutputStream streamOutput; // open while streamed input files are appended
 
     public PartFile(FileStatus partFileStatus, Long blockSize, FileSystem fs) {
         this.fs = fs;
@@ -23,8 +34,32 @@ public class PartFile {
     }
 
     public boolean canFit(FileStatus fileStatus) {
-        long spaceLeftInBlock = blockSize - (partFileSize %blockSize);
-        return spaceLeftInBlock >= fileStatus.getLen();
+        return spaceLeftInBlock() >= fileStatus.getLen();
+    }
+
+    /**
+     * @return bytes that can be added before the part file reaches the next block boundary, the block size
+     * if it ends at a boundary
+     */
+    public long spaceLeftInBlock() {
+        return blockSize - (partFileSize % blockSize);
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Adds the input file at the start of the next block. The rest of the current block is filled with
+     * zeros when the part file is written, unless the part file already ends at a block boundary.
+     */
+    public IndexFile addInputFileAtBlockBoundary(FileStatus fileStatus) {
+        long padding = partFileSize % blockSize == 0 ? 0 : spaceLeftInBlock();
+        if (padding > 0) {
+            paddingBeforeFile.put(filesToAdd.size(), padding);
+            partFileSize += padding;
+        }
+        return addInputFile(fileStatus);
     }
 
     public IndexFile addInputFile(FileStatus fileStatus) {
@@ -34,19 +69,108 @@ public class PartFile {
         return new IndexFile(fileStatus, positionFileWasAdded, this.getName());
     }
 
-    private String getName() {
+    String getName() {
         return partFileStatus.getPath().getName();
     }
 
-    public void writeToFile() throws IOException {
-        FSDataInputStream inputStream;
-        FSDataOutputStream outputStream = fs.append(partFileStatus.getPath());
-        for (FileStatus fileStatus : filesToAdd) {
-            inputStream = fs.open(fileStatus.getPath());
-            IOUtils.copyBytes(inputStream, outputStream, (int) fileStatus.getLen());
-            inputStream.close();
+    public boolean hasInputFiles() {
+        return !filesToAdd.isEmpty();
+    }
+
+    public int numberOfInputFiles() {
+        return filesToAdd.size();
+    }
+
+    /**
+     * Forgets the input files once they were appended, the part file size already includes them.
+     */
+    void inputFilesWritten() {
+        filesToAdd.clear();
+        paddingBeforeFile.clear();
+    }
+
+    /**
+     * Appends all added input files to the part file. Synchronized so that a part file never has more
+     * than one append stream open, no matter how many writers are scheduled. The next input files are
+     * opened and buffered by a {@link SourcePrefetcher} while the current one is copied.
+     *
+     * @param readAheadDepth number of input files opened ahead of the writer, 0 disables read-ahead
+     * @param budget         bytes read-ahead may buffer, shared with the other part files of this run
+     * @return number of bytes appended
+     * @throws IOException
+     */
+    synchronized long writeToFile(int readAheadDepth, ReadAheadBudget budget) throws IOException {
+        return writeToFile(readAheadDepth, budget, null);
+    }
+
+    /**
+     * @param progress notified by the output stream while data is written, e.g. to keep a map task alive
+     */
+    synchronized long writeToFile(int readAheadDepth, ReadAheadBudget budget, Progressable progress)
+            throws IOException {
+        long bytesWritten = 0;
+        int bufferSize = fs.getConf().getInt("io.file.buffer.size", 4096);
+        try (FSDataOutputStream outputStream = fs.append(partFileStatus.getPath(), bufferSize, progress);
+             SourcePrefetcher prefetcher = new SourcePrefetcher(fs, filesToAdd, readAheadDepth, budget, getName())) {
+            for (int i = 0; i < filesToAdd.size(); i++) {
+                Long padding = paddingBeforeFile.get(i);
+                if (padding != null)
+                    bytesWritten += writePadding(outputStream, padding);
+                try (SourcePrefetcher.Source source = prefetcher.next()) {
+                    bytesWritten += source.copyTo(outputStream);
+                }
+            }
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Appends the input file added last right away, reading its content from a stream instead of a source
+     * file. The append stream stays open for further streamed input files until {@link #closeStream()}, and
+     * streamed input files are not written again by {@link #writeToFile(int, ReadAheadBudget)}.
+     *
+     * Exactly as many bytes as the input file is long are read, the stream may go on with the next file.
+     *
+     * @return number of bytes appended, including zeros padding the previous block
+     * @throws IOException if the stream ends before the input file is complete
+     */
+    synchronized long appendLastInputFile(InputStream content) throws IOException {
+        int last = filesToAdd.size() - 1;
+        FileStatus fileStatus = filesToAdd.remove(last);
+        Long padding = paddingBeforeFile.remove(last);
+        if (streamOutput == null)
+            streamOutput = fs.append(partFileStatus.getPath(), fs.getConf().getInt("io.file.buffer.size", 4096));
+        long bytesWritten = padding == null ? 0 : writePadding(streamOutput, padding);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long remaining = fileStatus.getLen();
+        int read;
+        while (remaining > 0 && (read = content.read(buffer, 0, (int) Math.min(remaining, buffer.length))) != -1) {
+            streamOutput.write(buffer, 0, read);
+            remaining -= read;
+        }
+        if (remaining > 0)
+            throw new IOException("The content of " + fileStatus.getPath() + " ended " + remaining
+                    + " bytes short of the " + fileStatus.getLen() + " bytes given");
+        return bytesWritten + fileStatus.getLen();
+    }
+
+    /**
+     * Closes the append stream of streamed input files, their bytes are readable afterwards.
+     */
+    synchronized void closeStream() throws IOException {
+        if (streamOutput == null)
+            return;
+        try {
+            streamOutput.close();
+        } finally {
+            streamOutput = null;
         }
-        outputStream.close();
     }
-}
 
+    private static long writePadding(OutputStream outputStream, long length) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(length, PADDING_BUFFER_SIZE)];
+        for (long remaining = length; remaining > 0; remaining -= zeros.length)
+            outputStream.write(zeros, 0, (int) Math.min(remaining, zeros.length));
+        return length;
+    }
+}
@@ -1,18 +1,80 @@
 package de.tuberlin.cit.storageassistant.part;
 
+import de.tuberlin.cit.storageassistant.DFSUtils;
 import de.tuberlin.cit.storageassistant.index.Index;
 import de.tuberlin.cit.storageassistant.index.IndexDirectory;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PartFileManager {
+    private final static Logger log = Logger.getLogger(PartFileManager.class);
+
+    /**
+     * Maximum number of part files that are appended to concurrently.
+     */
+    public static final String WRITE_THREADS_KEY = "ahar.partfile.write.threads";
+    public static final int DEFAULT_WRITE_THREADS = 4;
+
+    /**
+     * Number of input files each part file writer opens ahead of the one it is copying.
+     */
+    public static final String READ_AHEAD_FILES_KEY = "ahar.partfile.readahead.files";
+    public static final int DEFAULT_READ_AHEAD_FILES = 8;
+
+    /**
+     * Upper bound for input file bytes buffered by read-ahead, shared by all part file writers.
+     */
+    public static final String READ_AHEAD_BYTES_KEY = "ahar.partfile.readahead.bytes";
+    public static final long DEFAULT_READ_AHEAD_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * How input files are assigned to part files: first-fit, best-fit-decreasing or block-aligned.
+     */
+    public static final String PLACEMENT_STRATEGY_KEY = "ahar.placement.strategy";
+    public static final String DEFAULT_PLACEMENT_STRATEGY = "first-fit";
+
+    /**
+     * Zero bytes the block-aligned placement may insert to start a file larger than a block at the next
+     * block boundary of an existing part file.
+     */
+    public static final String MAX_PADDING_KEY = "ahar.placement.padding.max";
+    public static final long DEFAULT_MAX_PADDING = 4 * 1024 * 1024;
+
+    /**
+     * Number of threads listing input directories concurrently, which bounds the concurrent listing
+     * requests sent to the NameNode.
+     */
+    public static final String SCAN_THREADS_KEY = "ahar.scan.threads";
+    public static final int DEFAULT_SCAN_THREADS = 8;
+
+    /**
+     * Number of found input files that are placed together. Best fit decreasing orders the files within such
+     * a batch.
+     */
+    public static final String PLACEMENT_BATCH_KEY = "ahar.placement.batch.files";
+    public static final int DEFAULT_PLACEMENT_BATCH = 10000;
+
     private List<PartFile> partFiles;
+    private final Set<PartFile> streamedPartFiles = new LinkedHashSet<>();
+    private PlacementStrategy placement;
     private final Path harPath;
     private FileSystem fs;
     private Index index;
@@ -20,10 +82,54 @@ public class PartFileManager {
 
     public PartFileManager(FileSystem fs, Path harArchivePath) throws IOException {
         this.fs = fs;
-        //TODO default block size for part is 512mb
-        this.defaultHarBlockSize = fs.getFileStatus(harArchivePath.suffix("/part-0")).getBlockSize();
         this.harPath = harArchivePath;
+        this.defaultHarBlockSize = partFileBlockSize(fs, harArchivePath);
         this.partFiles = loadPartFiles();
+        this.placement = createPlacementStrategy(fs.getConf());
+        for (PartFile partFile : partFiles)
+            placement.addPartFile(partFile);
+    }
+
+    /**
+     * @return the block size of the archive's part files, the default block size of the file system if it
+     * has none
+     */
+    static long partFileBlockSize(FileSystem fs, Path harPath) throws IOException {
+        //TODO default block size for part is 512mb
+        for (FileStatus fileStatus : fs.listStatus(harPath)) {
+            if (fileStatus.getPath().getName().matches("part-\\d+"))
+                return fileStatus.getBlockSize();
+        }
+        return fs.getDefaultBlockSize(harPath);
+    }
+
+    /**
+     * @return number following the highest existing part file. Part files may be missing in between, e.g.
+     * after a compaction, so the number of part files is no safe name for a new one.
+     */
+    static int nextPartNumber(FileSystem fs, Path harPath) throws IOException {
+        int next = 0;
+        for (FileStatus fileStatus : fs.listStatus(harPath)) {
+            String name = fileStatus.getPath().getName();
+            if (name.matches("part-\\d+"))
+                next = Math.max(next, Integer.parseInt(name.substring("part-".length())) + 1);
+        }
+        return next;
+    }
+
+    private PlacementStrategy createPlacementStrategy(Configuration conf) {
+        String strategy = conf.get(PLACEMENT_STRATEGY_KEY, DEFAULT_PLACEMENT_STRATEGY);
+        switch (strategy) {
+            case "first-fit":
+                return new FirstFitPlacement();
+            case "best-fit-decreasing":
+                return new BestFitDecreasingPlacement(defaultHarBlockSize);
+            case "block-aligned":
+                return new BlockAlignedPlacement(defaultHarBlockSize,
+                        conf.getLong(MAX_PADDING_KEY, DEFAULT_MAX_PADDING));
+            default:
+                throw new IllegalArgumentException("Unknown " + PLACEMENT_STRATEGY_KEY + ": " + strategy);
+        }
     }
 
     private ArrayList<PartFile> loadPartFiles() throws IOException {
@@ -32,78 +138,180 @@ public class PartFileManager {
         for (FileStatus fileStatus : files) {
             String fileName = fileStatus.getPath().getName();
             if (fileName.startsWith("part-")) {
-                partFiles.add(createNewPartFile(fileStatus.getPath()));
+                partFiles.add(new PartFile(fileStatus, defaultHarBlockSize, fs));
             }
         }
         return partFiles;
     }
 
+    /**
+     * Adds the input paths to the index and places their files into part files. The input trees are walked
+     * by an {@link InputScanner} that lists sibling directories concurrently, and files are placed in batches
+     * while the scan goes on. The index and the part files are only changed by the calling thread.
+     */
     public void addToPartFilesAndUpdateIndex(Path[] inputPaths, Index index) throws IOException {
-        this.index = index;
-        addParentDirectories(inputPaths);
-        addToPartFilesAndIndex(getFileStatuses(inputPaths));
+        addToPartFilesAndUpdateIndex(inputPaths, index, new MetadataCache(fs));
     }
 
-    private void addParentDirectories(Path[] paths) throws IOException {
-        for (Path path : paths)
-            addParentDirectoriesRecursively(path);
+    /**
+     * Like {@link #addToPartFilesAndUpdateIndex(Path[], Index)}, for inputs whose file statuses the caller
+     * looked up already, so they are not looked up again.
+     */
+    public void addToPartFilesAndUpdateIndex(List<FileStatus> inputs, Index index) throws IOException {
+        MetadataCache metadata = new MetadataCache(fs);
+        Path[] inputPaths = new Path[inputs.size()];
+        for (int i = 0; i < inputPaths.length; i++) {
+            metadata.put(inputs.get(i));
+            inputPaths[i] = inputs.get(i).getPath();
+        }
+        addToPartFilesAndUpdateIndex(inputPaths, index, metadata);
     }
 
-    private void addParentDirectoriesRecursively(Path path) throws IOException {
-        if (!path.isRoot()) {
-            Path parent = path.getParent();
-            IndexDirectory newEntry = new IndexDirectory(fs.getFileStatus(parent));
-            newEntry.addChild(path.getName());
-            index.addEntry(newEntry);
-            addParentDirectoriesRecursively(parent);
+    private void addToPartFilesAndUpdateIndex(Path[] inputPaths, Index index, MetadataCache metadata)
+            throws IOException {
+        this.index = index;
+        Configuration conf = fs.getConf();
+        addParentDirectories(inputPaths, metadata);
+
+        FoundFiles foundFiles = new FoundFiles(Math.max(1, conf.getInt(PLACEMENT_BATCH_KEY, DEFAULT_PLACEMENT_BATCH)));
+        int threads = Math.max(1, conf.getInt(SCAN_THREADS_KEY, DEFAULT_SCAN_THREADS));
+        try (InputScanner scanner = new InputScanner(metadata, threads)) {
+            scanner.scan(getFileStatuses(inputPaths, metadata), foundFiles);
+            foundFiles.placeBatch();
+            log.info("Scanned " + scanner.getDirectories() + " directories and " + scanner.getFiles()
+                    + " files with " + threads + " threads and " + metadata.getRequests()
+                    + " metadata requests, " + foundFiles.placed + " files are new");
         }
     }
 
-    private List<FileStatus> getFileStatuses(Path[] paths) throws IOException {
+    private void addParentDirectories(Path[] paths, MetadataCache metadata) throws IOException {
+        for (Path path : paths) {
+            Path current = fs.makeQualified(path);
+            while (!current.isRoot()) {
+                Path parent = current.getParent();
+                IndexDirectory newEntry = new IndexDirectory(metadata.getFileStatus(parent));
+                newEntry.addChild(current.getName());
+                index.addEntry(newEntry);
+                current = parent;
+            }
+        }
+    }
+
+    private List<FileStatus> getFileStatuses(Path[] paths, MetadataCache metadata) throws IOException {
         List<FileStatus> result = new ArrayList<>();
         for (Path p : paths)
-            result.add(fs.getFileStatus(p));
+            result.add(metadata.getFileStatus(p));
         return result;
     }
 
-    private void addToPartFilesAndIndex(List<FileStatus> inputFileStatuses) throws IOException {
-        for (FileStatus current : inputFileStatuses) {
-            if (current.isDirectory()) {
-                addDirectoryEntryToIndex(current);
-                addToPartFilesAndIndex(getChildrenFromDirectory(current));
-            } else if (current.isFile() && !index.containsEntryFor(current)) {
-                addToPartFile(current);
-            }
+    /**
+     * Adds found directories to the index and collects found files that are not archived yet, which are
+     * placed once a batch is full. Files reached through more than one input path are placed once.
+     */
+    private class FoundFiles implements InputScanner.Listener {
+        private final int batchSize;
+        private final List<FileStatus> batch = new ArrayList<>();
+        private final Set<Integer> batchHashes = new HashSet<>();
+        private long placed = 0;
+
+        FoundFiles(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void directoryFound(FileStatus directory, List<FileStatus> children) throws IOException {
+            addDirectoryEntryToIndex(directory, children);
+        }
+
+        @Override
+        public void fileFound(FileStatus file) throws IOException {
+            int harHash = DFSUtils.getHarHash(file);
+            if (index.containsEntryForHash(harHash) || !batchHashes.add(harHash))
+                return;
+            batch.add(file);
+            if (batch.size() >= batchSize)
+                placeBatch();
+        }
+
+        void placeBatch() throws IOException {
+            placeInputFiles(batch);
+            placed += batch.size();
+            batch.clear();
+            batchHashes.clear();
         }
     }
 
-    private void addDirectoryEntryToIndex(FileStatus fileStatus) throws IOException {
+    private void addDirectoryEntryToIndex(FileStatus fileStatus, List<FileStatus> children) throws IOException {
         IndexDirectory newEntry = new IndexDirectory(fileStatus);
-        newEntry.addChildren(getChildrenFromDirectory(fileStatus));
+        newEntry.addChildren(children);
         index.addEntry(newEntry);
     }
 
-    private List<FileStatus> getChildrenFromDirectory(FileStatus directoryFileStatus) throws IOException {
-        List<FileStatus> children = new ArrayList<>();
-        if (directoryFileStatus.isDirectory())
-            Collections.addAll(children, fs.listStatus(directoryFileStatus.getPath()));
-        return children;
+    /**
+     * Places input files that are already resolved into part files and adds their entries to the index,
+     * without walking the file system. Lets the placement be measured on its own.
+     */
+    void addFilesToPartFiles(List<FileStatus> inputFiles, Index index) throws IOException {
+        this.index = index;
+        placeInputFiles(inputFiles);
     }
 
-    private void addToPartFile(FileStatus fileStatus) throws IOException {
-        for (PartFile partFile : partFiles) {
-            if (partFile.canFit(fileStatus)) {
-                index.addEntry(partFile.addInputFile(fileStatus));
-                return;
-            }
-        } // if no appropriate partFile was found
-        addToNewPartFile(fileStatus);
+    /**
+     * Places the input files as one batch, in the order the placement strategy prefers.
+     */
+    private void placeInputFiles(List<FileStatus> inputFiles) throws IOException {
+        for (FileStatus inputFile : placement.order(inputFiles))
+            index.addEntry(placement.addInputFile(choosePartFile(inputFile), inputFile));
     }
 
-    private void addToNewPartFile(FileStatus fileStatus) throws IOException {
-        PartFile partFile = createNewPartFile(new Path(harPath, "part-" + partFiles.size()));
-        index.addEntry(partFile.addInputFile(fileStatus));
-        partFiles.add(partFile);
+    /**
+     * @return the part file the placement strategy chose for the input file, a new one if it chose none
+     */
+    private PartFile choosePartFile(FileStatus inputFile) throws IOException {
+        PartFile partFile = placement.choosePartFile(inputFile);
+        if (partFile == null) {
+            partFile = createNewPartFile(new Path(harPath, "part-" + nextPartNumber(fs, harPath)));
+            partFiles.add(partFile);
+            placement.addPartFile(partFile);
+        }
+        return partFile;
+    }
+
+    /**
+     * Places a file that does not exist in any file system and appends its content from the stream right
+     * away. Every part file written to this way keeps its append stream open until {@link #closeStreams()},
+     * so {@link #writeAllToFile()} must not be called before.
+     *
+     * @param metadata path in the archive, length, modification time, permission, owner and group of the file
+     * @return the index entry of the file
+     * @throws IOException if the stream ends before the given length was read
+     */
+    public IndexFile appendStreamed(FileStatus metadata, InputStream content) throws IOException {
+        PartFile partFile = choosePartFile(metadata);
+        IndexFile entry = placement.addInputFile(partFile, metadata);
+        streamedPartFiles.add(partFile);
+        partFile.appendLastInputFile(content);
+        return entry;
+    }
+
+    /**
+     * Closes the append streams of {@link #appendStreamed(FileStatus, InputStream)}, which makes the streamed
+     * files readable. Every stream is closed, even if closing another one failed.
+     */
+    public void closeStreams() throws IOException {
+        IOException failure = null;
+        for (PartFile partFile : streamedPartFiles) {
+            try {
+                partFile.closeStream();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = new IOException("Unable to close the streams to one or more part files");
+                failure.addSuppressed(e);
+            }
+        }
+        streamedPartFiles.clear();
+        if (failure != null)
+            throw failure;
     }
 
     private PartFile createNewPartFile(Path path) throws IOException {
@@ -112,8 +320,70 @@ public class PartFileManager {
         return new PartFile(partFileStatus, defaultHarBlockSize, fs);
     }
 
-    public void writeAllToFile() throws IOException {
-        for (PartFile partFile : partFiles)
-            partFile.writeToFile();
+    /**
+     * Appends the added input files to their part files. Every part file is written by exactly one task of
+     * a bounded worker pool, so different part files are appended concurrently. A failing part file does
+     * not stop the others; all failures are reported together once every part file was processed.
+     *
+     * Once all part files are written their input files are forgotten, so the manager can place and write
+     * more files afterwards, e.g. in a long running {@link de.tuberlin.cit.storageassistant.AppendDaemon}.
+     *
+     * @return throughput statistics of this run
+     * @throws IOException if at least one part file could not be written
+     */
+    public WriteStatistics writeAllToFile() throws IOException {
+        WriteStatistics statistics = new WriteStatistics();
+        List<PartFile> partFilesToWrite = new ArrayList<>();
+        for (PartFile partFile : partFiles) {
+            if (partFile.hasInputFiles())
+                partFilesToWrite.add(partFile);
+        }
+        if (partFilesToWrite.isEmpty()) {
+            statistics.finish();
+            return statistics;
+        }
+
+        Configuration conf = fs.getConf();
+        int threads = Math.max(1, Math.min(partFilesToWrite.size(),
+                conf.getInt(WRITE_THREADS_KEY, DEFAULT_WRITE_THREADS)));
+        int readAheadDepth = Math.max(0, conf.getInt(READ_AHEAD_FILES_KEY, DEFAULT_READ_AHEAD_FILES));
+        ReadAheadBudget budget = new ReadAheadBudget(conf.getLong(READ_AHEAD_BYTES_KEY, DEFAULT_READ_AHEAD_BYTES));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<PartFile, Future<Long>> pendingWrites = new LinkedHashMap<>();
+        try {
+            for (PartFile partFile : partFilesToWrite)
+                pendingWrites.put(partFile, executor.submit(() -> partFile.writeToFile(readAheadDepth, budget)));
+            awaitWrites(pendingWrites, statistics);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (PartFile partFile : partFilesToWrite)
+            partFile.inputFilesWritten();
+        return statistics;
+    }
+
+    private void awaitWrites(Map<PartFile, Future<Long>> pendingWrites, WriteStatistics statistics)
+            throws IOException {
+        IOException failure = null;
+        for (Map.Entry<PartFile, Future<Long>> pendingWrite : pendingWrites.entrySet()) {
+            PartFile partFile = pendingWrite.getKey();
+            try {
+                statistics.partWritten(partFile.numberOfInputFiles(), pendingWrite.getValue().get());
+            } catch (ExecutionException e) {
+                statistics.partFailed();
+                log.error("Unable to append to " + partFile.getName(), e.getCause());
+                if (failure == null)
+                    failure = new IOException("Unable to append to one or more part files");
+                failure.addSuppressed(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while appending to " + partFile.getName(), e);
+            }
+        }
+        statistics.finish();
+        log.info(statistics);
+        if (failure != null)
+            throw failure;
     }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.fs.FileStatus;
+
+import java.util.List;
+
+/**
+ * Decides which part file an input file is appended to. The {@link PartFileManager} registers every part
+ * file of the archive, asks for a part file per input file and creates a new part file if none is chosen.
+ * Input files are always added through the strategy, so it can keep track of the space left in each part
+ * file.
+ */
+public interface PlacementStrategy {
+
+    /**
+     * @return the input files of a batch in the order they are placed
+     */
+    default List<FileStatus> order(List<FileStatus> inputFiles) {
+        return inputFiles;
+    }
+
+    /**
+     * Registers an existing or newly created part file.
+     */
+    void addPartFile(PartFile partFile);
+
+    /**
+     * @return the registered part file the input file should be appended to, or null if it should be appended
+     * to a new part file
+     */
+    PartFile choosePartFile(FileStatus inputFile);
+
+    /**
+     * Appends the input file to a registered part file.
+     *
+     * @return the index entry of the input file
+     */
+    IndexFile addInputFile(PartFile partFile, FileStatus inputFile);
+}
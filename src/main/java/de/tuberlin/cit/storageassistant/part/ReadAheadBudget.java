@@ -0,0 +1,33 @@
+package de.tuberlin.cit.storageassistant.part;
+
+/**
+ * Caps the number of source bytes that read-ahead may buffer in memory. One budget is shared by all part
+ * files written in the same run, so the cap holds no matter how many part files are appended concurrently.
+ */
+class ReadAheadBudget {
+    private final long capacity;
+    private long available;
+
+    ReadAheadBudget(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.available = this.capacity;
+    }
+
+    /**
+     * @return true if a source of the given length may be buffered at all
+     */
+    boolean canBuffer(long bytes) {
+        return bytes <= capacity;
+    }
+
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (available < bytes)
+            wait();
+        available -= bytes;
+    }
+
+    synchronized void release(long bytes) {
+        available += bytes;
+        notifyAll();
+    }
+}
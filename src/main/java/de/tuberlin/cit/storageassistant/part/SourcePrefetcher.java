@@ -0,0 +1,195 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Opens the source files of a part file ahead of the writer. A background thread keeps up to {@code depth}
+ * sources ready: sources that fit into the {@link ReadAheadBudget} are read completely into memory, larger
+ * ones are only opened, which still takes the NameNode lookup and DataNode connection setup off the
+ * writer's critical path. Sources are handed out in the order they were given.
+ *
+ * With a depth of 0 no thread is started and every source is opened when it is requested.
+ */
+class SourcePrefetcher implements Closeable {
+    private final FileSystem fs;
+    private final Iterator<FileStatus> sources;
+    private final ReadAheadBudget budget;
+    private final BlockingQueue<Source> readAhead;
+    private final Thread readAheadThread;
+
+    SourcePrefetcher(FileSystem fs, List<FileStatus> sources, int depth, ReadAheadBudget budget, String name) {
+        this.fs = fs;
+        this.sources = sources.iterator();
+        this.budget = budget;
+        if (depth > 0) {
+            this.readAhead = new ArrayBlockingQueue<>(depth);
+            this.readAheadThread = new Thread(this::prefetchAll, "ahar-readahead-" + name);
+            this.readAheadThread.setDaemon(true);
+            this.readAheadThread.start();
+        } else {
+            this.readAhead = null;
+            this.readAheadThread = null;
+        }
+    }
+
+    /**
+     * @return the next source, which must be closed by the caller after it was copied
+     * @throws IOException if the source could not be opened or read
+     */
+    Source next() throws IOException {
+        if (readAheadThread == null)
+            return open(sources.next(), false);
+
+        Source source;
+        try {
+            source = readAhead.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+        if (source.failure != null)
+            throw source.failure;
+        return source;
+    }
+
+    /**
+     * Sources that are never handed out are closed here, so their buffers go back to the budget shared with
+     * other part files. Any failure is handed to the writer, which would wait for the next source forever
+     * otherwise.
+     */
+    private void prefetchAll() {
+        Source source = null;
+        try {
+            while (sources.hasNext()) {
+                source = prefetch(sources.next());
+                readAhead.put(source);
+                if (source.failure != null)
+                    return;
+                source = null;
+            }
+        } catch (InterruptedException e) {
+            // the writer closed the prefetcher
+            if (source != null)
+                source.close();
+        } catch (Throwable t) {
+            if (source != null)
+                source.close();
+            try {
+                readAhead.put(new Source(null, new IOException("Read-ahead failed", t)));
+            } catch (InterruptedException e) {
+                // the writer closed the prefetcher
+            }
+        }
+    }
+
+    private Source prefetch(FileStatus fileStatus) throws InterruptedException {
+        boolean buffer = fileStatus.getLen() <= Integer.MAX_VALUE && budget.canBuffer(fileStatus.getLen());
+        if (buffer)
+            budget.acquire(fileStatus.getLen());
+        try {
+            return open(fileStatus, buffer);
+        } catch (IOException e) {
+            if (buffer)
+                budget.release(fileStatus.getLen());
+            return new Source(fileStatus, e);
+        } catch (RuntimeException | Error e) {
+            if (buffer)
+                budget.release(fileStatus.getLen());
+            throw e;
+        }
+    }
+
+    private Source open(FileStatus fileStatus, boolean buffer) throws IOException {
+        FSDataInputStream inputStream = fs.open(fileStatus.getPath());
+        if (!buffer)
+            return new Source(fileStatus, inputStream);
+
+        try {
+            byte[] content = new byte[(int) fileStatus.getLen()];
+            IOUtils.readFully(inputStream, content, 0, content.length);
+            return new Source(fileStatus, content, budget);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (readAheadThread == null)
+            return;
+        readAheadThread.interrupt();
+        try {
+            readAheadThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Source source;
+        while ((source = readAhead.poll()) != null)
+            source.close();
+    }
+
+    /**
+     * A source file that is either buffered in memory or open for streaming.
+     */
+    static class Source implements Closeable {
+        private final FileStatus fileStatus;
+        private final FSDataInputStream inputStream;
+        private final IOException failure;
+        private byte[] content;
+        private ReadAheadBudget budget;
+
+        private Source(FileStatus fileStatus, FSDataInputStream inputStream) {
+            this.fileStatus = fileStatus;
+            this.inputStream = inputStream;
+            this.failure = null;
+        }
+
+        private Source(FileStatus fileStatus, byte[] content, ReadAheadBudget budget) {
+            this.fileStatus = fileStatus;
+            this.inputStream = null;
+            this.failure = null;
+            this.content = content;
+            this.budget = budget;
+        }
+
+        private Source(FileStatus fileStatus, IOException failure) {
+            this.fileStatus = fileStatus;
+            this.inputStream = null;
+            this.failure = failure;
+        }
+
+        /**
+         * Copies exactly the length recorded in the file's status, as that is what the index entry claims.
+         *
+         * @return number of bytes copied
+         */
+        long copyTo(OutputStream outputStream) throws IOException {
+            if (content != null)
+                outputStream.write(content);
+            else
+                IOUtils.copyBytes(inputStream, outputStream, fileStatus.getLen(), false);
+            return fileStatus.getLen();
+        }
+
+        @Override
+        public void close() {
+            if (content != null) {
+                budget.release(content.length);
+                content = null;
+            }
+            IOUtils.closeStream(inputStream);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.tuberlin.cit.storageassistant.part;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregated throughput numbers of one {@link PartFileManager#writeAllToFile()} run.
+ * Part writers report concurrently, so all counters are atomic.
+ */
+public class WriteStatistics {
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+
+    private final AtomicInteger partsWritten = new AtomicInteger();
+    private final AtomicInteger partsFailed = new AtomicInteger();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    void partWritten(int files, long bytes) {
+        partsWritten.incrementAndGet();
+        filesWritten.addAndGet(files);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    void partFailed() {
+        partsFailed.incrementAndGet();
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public int getPartsWritten() {
+        return partsWritten.get();
+    }
+
+    public int getPartsFailed() {
+        return partsFailed.get();
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getElapsedMillis() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    public double getMegabytesPerSecond() {
+        long millis = Math.max(getElapsedMillis(), 1);
+        return (getBytesWritten() / (1024.0 * 1024.0)) / (millis / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("appended %d files (%d bytes) to %d part files in %d ms (%.2f MB/s, %d parts failed)",
+                getFilesWritten(), getBytesWritten(), getPartsWritten(), getElapsedMillis(),
+                getMegabytesPerSecond(), getPartsFailed());
+    }
+}
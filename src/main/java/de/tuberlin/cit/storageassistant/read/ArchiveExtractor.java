@@ -0,0 +1,187 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import de.tuberlin.cit.storageassistant.index.IndexDirectory;
+import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Extracts a whole archive. The _index is read once and its file entries are grouped by part file and sorted
+ * by offset, so every part file is read from front to back exactly once and its bytes are streamed into the
+ * extracted files one after the other. Reading through HarFileSystem instead costs a lookup and a seek per
+ * file.
+ *
+ * Part files are extracted concurrently, one part file per thread (see {@link #EXTRACT_THREADS_KEY}).
+ * Directories get the permissions and modification times recorded in the archive, files their permissions
+ * and modification times; owners and groups are not restored, since only superusers may change them.
+ */
+public class ArchiveExtractor {
+    private final static Logger log = Logger.getLogger(ArchiveExtractor.class);
+
+    /**
+     * Number of part files that are extracted concurrently.
+     */
+    public static final String EXTRACT_THREADS_KEY = "ahar.extract.threads";
+    public static final int DEFAULT_EXTRACT_THREADS = 8;
+
+    private final Configuration conf;
+    private final FileSystem fs;
+    private final Path harPath;
+
+    public ArchiveExtractor(Path harPath, Configuration conf) throws IOException {
+        this.conf = conf;
+        this.fs = harPath.getFileSystem(conf);
+        this.harPath = fs.makeQualified(harPath);
+    }
+
+    /**
+     * Extracts every file and directory of the archive below the destination, e.g. the archived file /a/b
+     * becomes destination/a/b. Existing files are not overwritten, extracting fails instead.
+     *
+     * @param destination directory on any file system Hadoop can write to
+     * @return number of extracted files
+     */
+    public long extractTo(Path destination) throws IOException {
+        long startTime = System.currentTimeMillis();
+        FileSystem destinationFs = destination.getFileSystem(conf);
+        Map<String, List<IndexFile>> filesByPart = new HashMap<>();
+        List<IndexDirectory> directories = new ArrayList<>();
+        try (IndexReader indexReader = new IndexReader(fs.open(new Path(harPath, "_index")))) {
+            IndexEntry entry;
+            while ((entry = indexReader.next()) != null) {
+                if (entry.isFile())
+                    filesByPart.computeIfAbsent(((IndexFile) entry).getPart(), part -> new ArrayList<>())
+                            .add((IndexFile) entry);
+                else
+                    directories.add((IndexDirectory) entry);
+            }
+        }
+
+        for (IndexDirectory directory : directories)
+            destinationFs.mkdirs(destinationOf(destination, directory));
+
+        int threads = Math.max(1, Math.min(filesByPart.size(),
+                conf.getInt(EXTRACT_THREADS_KEY, DEFAULT_EXTRACT_THREADS)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<String, Future<Long>> pendingParts = new LinkedHashMap<>();
+        long bytes = 0;
+        try {
+            for (Map.Entry<String, List<IndexFile>> part : filesByPart.entrySet())
+                pendingParts.put(part.getKey(), executor.submit(
+                        () -> extractPart(part.getKey(), part.getValue(), destinationFs, destination)));
+            bytes = awaitParts(pendingParts);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // set last, creating the files changed the modification times of their directories and read-only
+        // directories would not have accepted them
+        for (IndexDirectory directory : directories) {
+            Path path = destinationOf(destination, directory);
+            destinationFs.setTimes(path, directory.getTime(), -1);
+            destinationFs.setPermission(path, toPermission(directory.getRights()));
+        }
+
+        long files = 0;
+        for (List<IndexFile> partFiles : filesByPart.values())
+            files += partFiles.size();
+        log.info(String.format("Extracted %d files with %d bytes and %d directories from %d part files of %s in %.1f s",
+                files, bytes, directories.size(), filesByPart.size(), harPath,
+                (System.currentTimeMillis() - startTime) / 1000.0));
+        return files;
+    }
+
+    /**
+     * Streams the part file into the files it holds, in the order they lie in the part file. Gaps between
+     * files are skipped by seeking forward; files sharing bytes with the previous one seek back.
+     *
+     * @return number of bytes extracted
+     */
+    private long extractPart(String part, List<IndexFile> files, FileSystem destinationFs, Path destination)
+            throws IOException {
+        files.sort(Comparator.comparingLong(IndexFile::getOffset));
+        int bufferSize = conf.getInt("io.file.buffer.size", 4096);
+        byte[] buffer = new byte[Math.max(bufferSize, 64 * 1024)];
+        FsPermission umask = FsPermission.getUMask(conf);
+        long bytes = 0;
+        try (FSDataInputStream in = fs.open(new Path(harPath, part), bufferSize)) {
+            for (IndexFile file : files) {
+                if (in.getPos() != file.getOffset())
+                    in.seek(file.getOffset());
+                Path path = destinationOf(destination, file);
+                FsPermission permission = toPermission(file.getRights());
+                try (FSDataOutputStream out = destinationFs.create(path, permission, false, bufferSize,
+                        destinationFs.getDefaultReplication(path), destinationFs.getDefaultBlockSize(path), null)) {
+                    copy(in, out, file.getLength(), buffer, file);
+                }
+                if (!permission.applyUMask(umask).equals(permission)) // create applied the umask
+                    destinationFs.setPermission(path, permission);
+                destinationFs.setTimes(path, file.getTime(), -1);
+                bytes += file.getLength();
+            }
+        }
+        log.debug("Extracted " + files.size() + " files from " + part);
+        return bytes;
+    }
+
+    private void copy(FSDataInputStream in, FSDataOutputStream out, long length, byte[] buffer, IndexFile file)
+            throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0)
+                throw new EOFException(file.getPart() + " of " + harPath + " ends within " + file.getPath());
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private long awaitParts(Map<String, Future<Long>> pendingParts) throws IOException {
+        IOException failure = null;
+        long bytes = 0;
+        for (Map.Entry<String, Future<Long>> pendingPart : pendingParts.entrySet()) {
+            try {
+                bytes += pendingPart.getValue().get();
+            } catch (ExecutionException e) {
+                log.error("Unable to extract " + pendingPart.getKey() + " of " + harPath, e.getCause());
+                if (failure == null)
+                    failure = new IOException("Unable to extract one or more part files of " + harPath);
+                failure.addSuppressed(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting " + pendingPart.getKey(), e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return bytes;
+    }
+
+    private static Path destinationOf(Path destination, IndexEntry entry) {
+        return entry.getPath().equals("/") ? destination : new Path(destination, entry.getPath().substring(1));
+    }
+
+    private static FsPermission toPermission(String rights) {
+        return new FsPermission(Short.parseShort(rights));
+    }
+}
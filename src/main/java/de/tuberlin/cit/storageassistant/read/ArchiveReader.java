@@ -0,0 +1,361 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import de.tuberlin.cit.storageassistant.index.BinaryIndex;
+import de.tuberlin.cit.storageassistant.index.Index;
+import de.tuberlin.cit.storageassistant.index.IndexDirectory;
+import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+import de.tuberlin.cit.storageassistant.index.MasterIndexEntry;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HarFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up and opens files of an archive without going through HarFileSystem. The _masterindex is read once
+ * into sorted arrays; partitions of the _index are parsed when a path in their hash range is looked up and
+ * kept in a least recently used cache. A lookup is a binary search over the partitions and one within the
+ * partition.
+ *
+ * Paths are paths inside the archive, "/" is its root directory. Returned file statuses have paths below the
+ * archive directory on its file system, e.g. hdfs://namenode/user/an.har/dir/file.
+ *
+ * With {@link #SNAPSHOT_DIR_KEY} set, lookups go to a memory mapped local snapshot of the whole _index instead,
+ * see {@link IndexSnapshot}. Otherwise a binary index written along with the _index (see {@link BinaryIndex}) is
+ * read completely when the reader is opened and used for all lookups.
+ *
+ * A reader is safe to use from several threads. It reads the index as it was when the reader was opened;
+ * once the archive was appended to, lookups of partitions that are not cached yet fail and a new reader
+ * has to be opened, see {@link #isCurrent()} and {@link ArchiveReaderCache}.
+ */
+public class ArchiveReader {
+    private final static Logger log = Logger.getLogger(ArchiveReader.class);
+
+    /**
+     * Number of parsed _index partitions each reader keeps in memory.
+     */
+    public static final String CACHED_PARTITIONS_KEY = "ahar.reader.cache.partitions";
+    public static final int DEFAULT_CACHED_PARTITIONS = 1024;
+
+    /**
+     * Bytes between two archived files of a part file up to which {@link #readAll(Collection)} reads both
+     * with one positioned read, reading the bytes in between as well.
+     */
+    public static final String BATCH_GAP_KEY = "ahar.reader.batch.gap.bytes";
+    public static final long DEFAULT_BATCH_GAP = 256 * 1024;
+
+    /**
+     * Upper bound for the bytes of one positioned read of {@link #readAll(Collection)}.
+     */
+    public static final String BATCH_READ_BYTES_KEY = "ahar.reader.batch.read.bytes";
+    public static final long DEFAULT_BATCH_READ_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Local directory for memory mapped snapshots of the _index. If set, the first reader of an archive on a
+     * host writes a snapshot and later readers, also of other JVMs, map it instead of parsing partitions.
+     */
+    public static final String SNAPSHOT_DIR_KEY = "ahar.reader.snapshot.dir";
+
+    /**
+     * Whether a snapshot is checked against the _index by modification time and length, or by checksum.
+     * Checksums also accept snapshots of archives that were copied, but ask the DataNodes for every reader.
+     */
+    public static final String SNAPSHOT_VALIDATION_KEY = "ahar.reader.snapshot.validation";
+    public static final String DEFAULT_SNAPSHOT_VALIDATION = "modification-time";
+
+    /**
+     * Whether readers load the _index.bin of archives that have one. Loading reads the whole binary index,
+     * which pays off for many lookups but not for a few lookups in a very large archive.
+     */
+    public static final String BINARY_INDEX_KEY = "ahar.reader.binary.index";
+    public static final boolean DEFAULT_BINARY_INDEX = true;
+
+    private static final long MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final FileSystem fs;
+    private final Path harPath;
+    private final Path indexPath;
+    private final FileStatus indexStatus;
+
+    private final int[] lastHashes;
+    private final long[] startPositions;
+    private final long[] endPositions;
+    private final Map<Integer, IndexPartition> cachedPartitions;
+    private final long batchGap;
+    private final long batchReadBytes;
+    private final IndexSnapshot snapshot;
+    private final BinaryIndex binaryIndex;
+
+    private ArchiveReader(FileSystem fs, Path harPath, Configuration conf) throws IOException {
+        this.fs = fs;
+        this.batchGap = conf.getLong(BATCH_GAP_KEY, DEFAULT_BATCH_GAP);
+        this.batchReadBytes = Math.min(MAX_BUFFER_SIZE, conf.getLong(BATCH_READ_BYTES_KEY, DEFAULT_BATCH_READ_BYTES));
+        int cachedPartitions = Math.max(1, conf.getInt(CACHED_PARTITIONS_KEY, DEFAULT_CACHED_PARTITIONS));
+        this.harPath = fs.makeQualified(harPath);
+        this.indexPath = new Path(this.harPath, "_index");
+        this.indexStatus = fs.getFileStatus(indexPath);
+        this.snapshot = openSnapshot(conf);
+        this.binaryIndex = snapshot == null && conf.getBoolean(BINARY_INDEX_KEY, DEFAULT_BINARY_INDEX)
+                ? BinaryIndex.read(fs, this.harPath, indexStatus) : null;
+
+        boolean parsesPartitions = snapshot == null && binaryIndex == null;
+        List<MasterIndexEntry> partitions = parsesPartitions ? Index.readMasterIndex(this.harPath, fs)
+                : Collections.emptyList();
+        if (parsesPartitions && partitions.isEmpty()) // no usable _masterindex, the whole _index is one partition
+            partitions = Collections.singletonList(
+                    new MasterIndexEntry(0, Integer.MAX_VALUE, 0, indexStatus.getLen()));
+        lastHashes = new int[partitions.size()];
+        startPositions = new long[partitions.size()];
+        endPositions = new long[partitions.size()];
+        for (int i = 0; i < partitions.size(); i++) {
+            lastHashes[i] = partitions.get(i).getLastHash();
+            startPositions[i] = partitions.get(i).getStartPosition();
+            endPositions[i] = partitions.get(i).getEndPosition();
+        }
+
+        this.cachedPartitions = new LinkedHashMap<Integer, IndexPartition>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, IndexPartition> eldest) {
+                return size() > cachedPartitions;
+            }
+        };
+    }
+
+    /**
+     * @return the snapshot or null if snapshots are disabled or none could be opened, lookups then parse
+     * partitions
+     */
+    private IndexSnapshot openSnapshot(Configuration conf) {
+        String directory = conf.get(SNAPSHOT_DIR_KEY);
+        if (directory == null || directory.isEmpty())
+            return null;
+        String validation = conf.get(SNAPSHOT_VALIDATION_KEY, DEFAULT_SNAPSHOT_VALIDATION);
+        if (!validation.equals("modification-time") && !validation.equals("checksum"))
+            throw new IllegalArgumentException("Unknown " + SNAPSHOT_VALIDATION_KEY + ": " + validation);
+        try {
+            return IndexSnapshot.open(fs, harPath, indexStatus, Paths.get(directory), validation.equals("checksum"));
+        } catch (IOException e) {
+            log.warn("Unable to use a snapshot of " + harPath + ", reading its index partitions instead", e);
+            return null;
+        }
+    }
+
+    public static ArchiveReader open(Path harPath, Configuration conf) throws IOException {
+        FileSystem fs = harPath.getFileSystem(conf);
+        return new ArchiveReader(fs, harPath, conf);
+    }
+
+    /**
+     * @throws FileNotFoundException if the archive has no such file or directory
+     */
+    public FileStatus stat(Path path) throws IOException {
+        return toFileStatus(lookup(path));
+    }
+
+    /**
+     * Opens an archived file. The stream supports seeks and positioned reads within the file.
+     *
+     * @throws FileNotFoundException if the archive has no such file or the path is a directory
+     */
+    public FSDataInputStream open(Path path) throws IOException {
+        IndexEntry entry = lookup(path);
+        if (!entry.isFile())
+            throw new FileNotFoundException(path + " is a directory in " + harPath);
+        IndexFile file = (IndexFile) entry;
+        FSDataInputStream partFile = fs.open(new Path(harPath, file.getPart()));
+        try {
+            return new FSDataInputStream(new ArchivedFileInputStream(partFile, file.getOffset(), file.getLength()));
+        } catch (IOException e) {
+            partFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the complete contents of many archived files with as few reads as possible. Requested files are
+     * grouped by part file, every part file is opened once, and files that lie next to each other or close
+     * to each other are read together with one positioned read (see {@link #BATCH_GAP_KEY} and
+     * {@link #BATCH_READ_BYTES_KEY}). The content of every file is a slice of the buffer of its read, nothing
+     * is copied per file; slices of one read share their backing array.
+     *
+     * Meant for many small files, each file is read into memory completely.
+     *
+     * @return the content of every path, in the order of the paths
+     * @throws FileNotFoundException if the archive has no such file or a path is a directory
+     */
+    public Map<Path, ByteBuffer> readAll(Collection<Path> paths) throws IOException {
+        Map<String, List<CoalescedRead.Request>> requestsByPart = new HashMap<>();
+        for (Path path : paths) {
+            IndexEntry entry = lookup(path);
+            if (!entry.isFile())
+                throw new FileNotFoundException(path + " is a directory in " + harPath);
+            IndexFile file = (IndexFile) entry;
+            if (file.getLength() > MAX_BUFFER_SIZE)
+                throw new IOException(path + " is too large to be read into memory, open it instead");
+            requestsByPart.computeIfAbsent(file.getPart(), part -> new ArrayList<>())
+                    .add(new CoalescedRead.Request(path, file));
+        }
+
+        Map<Path, ByteBuffer> contents = new HashMap<>();
+        int reads = 0;
+        long bytesRead = 0;
+        for (Map.Entry<String, List<CoalescedRead.Request>> part : requestsByPart.entrySet()) {
+            try (FSDataInputStream partFile = fs.open(new Path(harPath, part.getKey()))) {
+                for (CoalescedRead read : CoalescedRead.plan(part.getValue(), batchGap, batchReadBytes)) {
+                    read.readInto(partFile, contents);
+                    reads++;
+                    bytesRead += read.getLength();
+                }
+            }
+        }
+        log.debug("Read " + contents.size() + " files of " + harPath + " from " + requestsByPart.size()
+                + " part files with " + reads + " reads of " + bytesRead + " bytes");
+
+        Map<Path, ByteBuffer> orderedContents = new LinkedHashMap<>();
+        for (Path path : paths)
+            orderedContents.put(path, contents.get(path));
+        return orderedContents;
+    }
+
+    /**
+     * @return the statuses of the children of a directory, or the status of the file if the path is a file
+     * @throws FileNotFoundException if the archive has no such file or directory
+     */
+    public List<FileStatus> list(Path directory) throws IOException {
+        IndexEntry entry = lookup(directory);
+        List<FileStatus> statuses = new ArrayList<>();
+        if (entry.isFile()) {
+            statuses.add(toFileStatus(entry));
+            return statuses;
+        }
+        String parent = entry.getPath().endsWith("/") ? entry.getPath() : entry.getPath() + "/";
+        for (String child : ((IndexDirectory) entry).getChildren()) {
+            IndexEntry childEntry = find(parent + child);
+            if (childEntry != null)
+                statuses.add(toFileStatus(childEntry));
+            else
+                log.warn(harPath + " lists " + parent + child + " without an index entry");
+        }
+        return statuses;
+    }
+
+    /**
+     * @return false once the _index of the archive was replaced, e.g. by an append
+     */
+    public boolean isCurrent() throws IOException {
+        FileStatus current = fs.getFileStatus(indexPath);
+        return current.getModificationTime() == indexStatus.getModificationTime()
+                && current.getLen() == indexStatus.getLen();
+    }
+
+    public Path getHarPath() {
+        return harPath;
+    }
+
+    private IndexEntry lookup(Path path) throws IOException {
+        IndexEntry entry = find(Path.getPathWithoutSchemeAndAuthority(path).toString());
+        if (entry == null)
+            throw new FileNotFoundException(path + " does not exist in " + harPath);
+        return entry;
+    }
+
+    private IndexEntry find(String path) throws IOException {
+        int harHash = HarFileSystem.getHarHash(new Path(path));
+        if (snapshot != null)
+            return snapshot.find(harHash, path);
+        if (binaryIndex != null)
+            return binaryIndex.find(harHash, path);
+        return getPartition(partitionFor(harHash)).get(harHash, path);
+    }
+
+    /**
+     * Partition i holds the hashes after the last hash of partition i - 1 up to and including its own last
+     * hash.
+     */
+    private int partitionFor(int harHash) {
+        int low = 0;
+        int high = lastHashes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lastHashes[mid] < harHash)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Partitions are parsed outside the lock, two threads missing the same partition may both parse it.
+     */
+    private IndexPartition getPartition(int partition) throws IOException {
+        IndexPartition indexPartition;
+        synchronized (cachedPartitions) {
+            indexPartition = cachedPartitions.get(partition);
+        }
+        if (indexPartition != null)
+            return indexPartition;
+
+        try (FSDataInputStream indexInStream = fs.open(indexPath)) {
+            if (!readsOpenedIndex(indexInStream))
+                throw new IOException("The index of " + harPath + " changed since it was opened");
+            indexInStream.seek(startPositions[partition]);
+            try (IndexReader indexReader = new IndexReader(
+                    new BoundedInputStream(indexInStream, endPositions[partition] - startPositions[partition]))) {
+                indexPartition = IndexPartition.read(indexReader);
+            }
+        }
+
+        synchronized (cachedPartitions) {
+            cachedPartitions.put(partition, indexPartition);
+        }
+        return indexPartition;
+    }
+
+    /**
+     * Checks that the stream reads the _index the reader was opened with. HDFS streams know the length of their
+     * file from opening it, which costs no further NameNode call; an append always makes the _index longer. A
+     * compaction that keeps the length of the _index goes unnoticed, as it does for cached partitions.
+     */
+    private boolean readsOpenedIndex(FSDataInputStream indexInStream) throws IOException {
+        if (indexInStream instanceof HdfsDataInputStream)
+            return ((HdfsDataInputStream) indexInStream).getVisibleLength() == indexStatus.getLen();
+        return isCurrent();
+    }
+
+    private FileStatus toFileStatus(IndexEntry entry) {
+        Path path = entry.getPath().equals("/") ? harPath : new Path(harPath.toString() + entry.getPath());
+        if (entry.isFile()) {
+            IndexFile file = (IndexFile) entry;
+            return new FileStatus(file.getLength(), false, indexStatus.getReplication(), indexStatus.getBlockSize(),
+                    file.getTime(), file.getTime(), toPermission(file.getRights()), file.getUser(), file.getGroup(),
+                    path);
+        }
+        IndexDirectory directory = (IndexDirectory) entry;
+        return new FileStatus(0, true, 0, 0, directory.getTime(), directory.getTime(),
+                toPermission(directory.getRights()), directory.getUser(), directory.getGroup(), path);
+    }
+
+    private static FsPermission toPermission(String rights) {
+        return new FsPermission(Short.parseShort(rights));
+    }
+}
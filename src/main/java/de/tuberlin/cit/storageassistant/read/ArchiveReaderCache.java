@@ -0,0 +1,99 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares {@link ArchiveReader}s of many archives between the threads of a long running service, so the
+ * _masterindex and the parsed partitions of an archive are loaded once instead of once per request. The
+ * least recently used readers are dropped once more than {@link #CACHED_ARCHIVES_KEY} archives are cached.
+ *
+ * A cached reader is checked against the archive at most every {@link #VALIDATION_INTERVAL_KEY}
+ * milliseconds and replaced by a new reader once the archive was appended to.
+ */
+public class ArchiveReaderCache {
+    private final static Logger log = Logger.getLogger(ArchiveReaderCache.class);
+
+    /**
+     * Number of archives whose readers are kept.
+     */
+    public static final String CACHED_ARCHIVES_KEY = "ahar.reader.cache.archives";
+    public static final int DEFAULT_CACHED_ARCHIVES = 64;
+
+    /**
+     * Milliseconds a cached reader is used before it is checked again for appends to its archive.
+     */
+    public static final String VALIDATION_INTERVAL_KEY = "ahar.reader.cache.validation.ms";
+    public static final long DEFAULT_VALIDATION_INTERVAL = 10000;
+
+    private final Configuration conf;
+    private final long validationInterval;
+    private final Map<String, CachedReader> readers;
+
+    public ArchiveReaderCache(Configuration conf) {
+        this.conf = conf;
+        this.validationInterval = conf.getLong(VALIDATION_INTERVAL_KEY, DEFAULT_VALIDATION_INTERVAL);
+        int cachedArchives = Math.max(1, conf.getInt(CACHED_ARCHIVES_KEY, DEFAULT_CACHED_ARCHIVES));
+        this.readers = new LinkedHashMap<String, CachedReader>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReader> eldest) {
+                return size() > cachedArchives;
+            }
+        };
+    }
+
+    /**
+     * @return a reader of the archive's current index, opened by this call or an earlier one
+     */
+    public ArchiveReader get(Path harPath) throws IOException {
+        String key = harPath.getFileSystem(conf).makeQualified(harPath).toString();
+        CachedReader cached;
+        synchronized (readers) {
+            cached = readers.get(key);
+        }
+        if (cached != null && cached.isValid())
+            return cached.reader;
+
+        if (cached != null)
+            log.info("Reopening " + key + ", its index changed");
+        CachedReader opened = new CachedReader(ArchiveReader.open(harPath, conf));
+        synchronized (readers) {
+            readers.put(key, opened);
+        }
+        return opened.reader;
+    }
+
+    /**
+     * Drops the reader of the archive, the next {@link #get(Path)} opens a new one.
+     */
+    public void invalidate(Path harPath) throws IOException {
+        String key = harPath.getFileSystem(conf).makeQualified(harPath).toString();
+        synchronized (readers) {
+            readers.remove(key);
+        }
+    }
+
+    private class CachedReader {
+        private final ArchiveReader reader;
+        private volatile long validatedAt = System.currentTimeMillis();
+
+        CachedReader(ArchiveReader reader) {
+            this.reader = reader;
+        }
+
+        boolean isValid() throws IOException {
+            long now = System.currentTimeMillis();
+            if (now - validatedAt < validationInterval)
+                return true;
+            if (!reader.isCurrent())
+                return false;
+            validatedAt = now;
+            return true;
+        }
+    }
+}
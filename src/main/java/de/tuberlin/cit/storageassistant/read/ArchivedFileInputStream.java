@@ -0,0 +1,96 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads one archived file from its part file. Positions are relative to the start of the archived file and
+ * reads stop at its end, so the stream behaves like a stream of the original file.
+ */
+class ArchivedFileInputStream extends FSInputStream {
+    private final FSDataInputStream partFile;
+    private final long start;
+    private final long length;
+    private long position = 0;
+
+    /**
+     * @param partFile stream of the part file, closed with this stream
+     * @param start    offset of the archived file in the part file
+     * @param length   length of the archived file
+     */
+    ArchivedFileInputStream(FSDataInputStream partFile, long start, long length) throws IOException {
+        this.partFile = partFile;
+        this.start = start;
+        this.length = length;
+        partFile.seek(start);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= length)
+            return -1;
+        int value = partFile.read();
+        if (value >= 0)
+            position++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position >= length)
+            return -1;
+        int read = partFile.read(buffer, offset, (int) Math.min(len, length - position));
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position < 0 || position >= length)
+            return -1;
+        return partFile.read(start + position, buffer, offset, (int) Math.min(len, length - position));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, length - position));
+        seek(position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        if (position < 0 || position > length)
+            throw new EOFException("Cannot seek to " + position + ", the file has " + length + " bytes");
+        partFile.seek(start + position);
+        this.position = position;
+    }
+
+    @Override
+    public long getPos() {
+        return position;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) {
+        return false;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        partFile.close();
+    }
+}
@@ -0,0 +1,79 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One positioned read of a part file that covers several archived files lying close to each other. The
+ * files' contents are handed out as slices of the read buffer, without copying.
+ */
+class CoalescedRead {
+    private final long start;
+    private long end;
+    private final List<Request> requests = new ArrayList<>();
+
+    static class Request {
+        private final Path path;
+        private final long offset;
+        private final long length;
+
+        Request(Path path, IndexFile file) {
+            this.path = path;
+            this.offset = file.getOffset();
+            this.length = file.getLength();
+        }
+    }
+
+    private CoalescedRead(Request first) {
+        this.start = first.offset;
+        this.end = first.offset + first.length;
+        requests.add(first);
+    }
+
+    /**
+     * Merges requests for one part file into reads. A request joins the previous read if at most maxGap
+     * bytes lie between them and the read does not grow beyond maxReadBytes; a single larger file gets a
+     * read of its own.
+     */
+    static List<CoalescedRead> plan(List<Request> requests, long maxGap, long maxReadBytes) {
+        List<Request> sorted = new ArrayList<>(requests);
+        sorted.sort(Comparator.comparingLong((Request request) -> request.offset));
+
+        List<CoalescedRead> reads = new ArrayList<>();
+        CoalescedRead current = null;
+        for (Request request : sorted) {
+            long requestEnd = request.offset + request.length;
+            if (current != null && request.offset - current.end <= maxGap
+                    && Math.max(current.end, requestEnd) - current.start <= maxReadBytes) {
+                current.end = Math.max(current.end, requestEnd);
+                current.requests.add(request);
+            } else {
+                current = new CoalescedRead(request);
+                reads.add(current);
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Reads the covered bytes of the part file with one positioned read and adds a slice per file.
+     */
+    void readInto(FSDataInputStream partFile, Map<Path, ByteBuffer> contents) throws IOException {
+        byte[] buffer = new byte[(int) (end - start)];
+        partFile.readFully(start, buffer);
+        for (Request request : requests)
+            contents.put(request.path, ByteBuffer.wrap(buffer, (int) (request.offset - start), (int) request.length).slice());
+    }
+
+    long getLength() {
+        return end - start;
+    }
+}
@@ -0,0 +1,57 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The parsed entries of one partition of an _index, sorted by har hash so an entry is found by binary search.
+ * Immutable once read.
+ */
+class IndexPartition {
+    private final int[] hashes;
+    private final IndexEntry[] entries;
+
+    private IndexPartition(int[] hashes, IndexEntry[] entries) {
+        this.hashes = hashes;
+        this.entries = entries;
+    }
+
+    static IndexPartition read(IndexReader indexReader) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        IndexEntry entry;
+        while ((entry = indexReader.next()) != null)
+            entries.add(entry);
+        entries.sort(Comparator.comparingInt(IndexEntry::getHarHash));
+
+        int[] hashes = new int[entries.size()];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = entries.get(i).getHarHash();
+        return new IndexPartition(hashes, entries.toArray(new IndexEntry[entries.size()]));
+    }
+
+    /**
+     * @return the entry of the path or null, entries with the same hash are told apart by their path
+     */
+    IndexEntry get(int harHash, String path) {
+        int position = Arrays.binarySearch(hashes, harHash);
+        if (position < 0)
+            return null;
+        while (position > 0 && hashes[position - 1] == harHash)
+            position--;
+        for (; position < hashes.length && hashes[position] == harHash; position++) {
+            if (entries[position].getPath().equals(path))
+                return entries[position];
+        }
+        return null;
+    }
+
+    int size() {
+        return entries.length;
+    }
+}
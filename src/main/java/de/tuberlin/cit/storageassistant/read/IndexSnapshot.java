@@ -0,0 +1,278 @@
+package de.tuberlin.cit.storageassistant.read;
+
+import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+/**
+ * A copy of an archive's _index on local disk that is memory mapped instead of parsed. Later readers of the
+ * same archive, also in other JVMs on the host, look entries up right away and share the mapped pages.
+ *
+ * Layout, all numbers big endian:
+ * <pre>
+ * 0   int  magic "AHIX"
+ * 4   int  version
+ * 8   long modification time of the _index
+ * 16  long length of the _index
+ * 24  int  number of entries
+ * 28  long position of the lookup table
+ * 36  int  length of the _index checksum, 0 if none was taken
+ * 40       checksum bytes
+ *          entries: int length, index line as UTF-8 bytes
+ *          lookup table: int[] har hashes in ascending order, long[] position of the entry with that hash
+ * </pre>
+ * A snapshot is valid as long as the _index has the recorded length and modification time or, if validated
+ * by checksum, the recorded checksum. Snapshots validated by modification time are named after the path of
+ * their archive and replaced when its _index changes. Snapshots validated by checksum are named after the
+ * checksum, so copies of an archive share one snapshot; every archive remembers the snapshot it used last
+ * in a .last file, and the one it used before is deleted.
+ */
+class IndexSnapshot {
+    private final static Logger log = Logger.getLogger(IndexSnapshot.class);
+
+    private static final int MAGIC = 0x41484958;
+    private static final int VERSION = 1;
+    private static final int COUNT_POSITION = 24;
+    private static final int CHECKSUM_POSITION = 36;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final long tableStart;
+
+    private IndexSnapshot(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(COUNT_POSITION);
+        this.tableStart = buffer.getLong(COUNT_POSITION + 4);
+    }
+
+    /**
+     * Maps the snapshot of the archive from the snapshot directory, creating or replacing it first if there
+     * is none that matches the current _index.
+     *
+     * @param indexStatus       status of the _index the snapshot has to match
+     * @param validateChecksums compare checksums of the _index instead of length and modification time
+     * @return the snapshot, or null if none could be created, e.g. because the _index changed meanwhile
+     */
+    static IndexSnapshot open(FileSystem fs, Path harPath, FileStatus indexStatus, java.nio.file.Path directory,
+                              boolean validateChecksums) throws IOException {
+        String archiveKey = DigestUtils.md5Hex(harPath.toString());
+        byte[] checksum = validateChecksums ? checksumOf(fs, indexStatus.getPath()) : new byte[0];
+        java.nio.file.Path file = directory.resolve(
+                (checksum.length > 0 ? DigestUtils.md5Hex(checksum) : archiveKey) + ".snapshot");
+
+        IndexSnapshot snapshot = Files.exists(file) ? map(file) : null;
+        if (snapshot == null || !snapshot.matches(indexStatus, checksum)) {
+            if (!create(fs, harPath, indexStatus, checksum, file))
+                return null;
+            snapshot = map(file);
+        }
+        if (checksum.length > 0)
+            deletePreviousSnapshot(directory, archiveKey, file);
+        return snapshot;
+    }
+
+    /**
+     * @return false if the _index changed while the snapshot was written
+     */
+    private static boolean create(FileSystem fs, Path harPath, FileStatus indexStatus, byte[] checksum,
+                                  java.nio.file.Path file) throws IOException {
+        java.nio.file.Path directory = file.getParent();
+        long startTime = System.currentTimeMillis();
+        Files.createDirectories(directory);
+        java.nio.file.Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            write(fs, indexStatus, checksum, temporaryFile);
+            makeReadableForAll(temporaryFile);
+            FileStatus current = fs.getFileStatus(indexStatus.getPath());
+            if (current.getModificationTime() != indexStatus.getModificationTime()
+                    || current.getLen() != indexStatus.getLen()) {
+                log.info("The index of " + harPath + " changed while its snapshot was written");
+                return false;
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        log.info("Wrote snapshot " + file + " of " + harPath + " in " + (System.currentTimeMillis() - startTime)
+                + " ms");
+        return true;
+    }
+
+    /**
+     * Snapshots named after a checksum are not replaced when the _index changes. Copies of the archive that
+     * still use the deleted snapshot write it again.
+     */
+    private static void deletePreviousSnapshot(java.nio.file.Path directory, String archiveKey,
+                                               java.nio.file.Path file) throws IOException {
+        java.nio.file.Path last = directory.resolve(archiveKey + ".last");
+        String name = file.getFileName().toString();
+        if (Files.exists(last)) {
+            String previous = new String(Files.readAllBytes(last), StandardCharsets.UTF_8).trim();
+            if (previous.equals(name))
+                return;
+            java.nio.file.Path previousFile = directory.resolve(previous);
+            if (previous.endsWith(".snapshot") && directory.equals(previousFile.getParent()))
+                Files.deleteIfExists(previousFile); // readers that mapped it go on reading it
+        }
+        java.nio.file.Path temporaryFile = Files.createTempFile(directory, archiveKey, ".tmp");
+        try {
+            Files.write(temporaryFile, name.getBytes(StandardCharsets.UTF_8));
+            makeReadableForAll(temporaryFile);
+            Files.move(temporaryFile, last, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Temporary files are only readable by their owner, but JVMs of other users may share the snapshot.
+     */
+    private static void makeReadableForAll(java.nio.file.Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            log.debug("Unable to set the permissions of " + file, e);
+        }
+    }
+
+    private static byte[] checksumOf(FileSystem fs, Path indexPath) throws IOException {
+        FileChecksum checksum = fs.getFileChecksum(indexPath);
+        return checksum == null ? new byte[0] : checksum.getBytes();
+    }
+
+    /**
+     * @return the mapped snapshot or null if the file is no complete snapshot of this version
+     */
+    private static IndexSnapshot map(java.nio.file.Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < CHECKSUM_POSITION + 4 || channel.size() > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getLong(COUNT_POSITION + 4) + 12L * buffer.getInt(COUNT_POSITION) != channel.size())
+                return null;
+            return new IndexSnapshot(buffer);
+        }
+    }
+
+    private boolean matches(FileStatus indexStatus, byte[] checksum) {
+        byte[] recordedChecksum = new byte[buffer.getInt(CHECKSUM_POSITION)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(CHECKSUM_POSITION + 4);
+        view.get(recordedChecksum);
+        if (checksum.length > 0)
+            return Arrays.equals(checksum, recordedChecksum);
+        return buffer.getLong(8) == indexStatus.getModificationTime() && buffer.getLong(16) == indexStatus.getLen();
+    }
+
+    private static void write(FileSystem fs, FileStatus indexStatus, byte[] checksum, java.nio.file.Path file)
+            throws IOException {
+        long[] hashesAndNumbers = new long[1024];
+        long[] positions = new long[1024];
+        int count = 0;
+        long position = CHECKSUM_POSITION + 4 + checksum.length;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexStatus.getModificationTime());
+            out.writeLong(indexStatus.getLen());
+            out.writeInt(0); // number of entries and table position are filled in at the end
+            out.writeLong(0);
+            out.writeInt(checksum.length);
+            out.write(checksum);
+
+            try (IndexReader indexReader = new IndexReader(fs.open(indexStatus.getPath()))) {
+                IndexEntry entry;
+                while ((entry = indexReader.next()) != null) {
+                    if (count == positions.length) {
+                        hashesAndNumbers = Arrays.copyOf(hashesAndNumbers, count * 2);
+                        positions = Arrays.copyOf(positions, count * 2);
+                    }
+                    // har hashes are never negative, sorting hash and entry number together sorts by hash
+                    hashesAndNumbers[count] = ((long) entry.getHarHash() << 32) | count;
+                    positions[count] = position;
+                    count++;
+
+                    byte[] line = entry.toString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(line.length);
+                    out.write(line);
+                    position += 4 + line.length;
+                }
+            }
+
+            long tableStart = position;
+            Arrays.sort(hashesAndNumbers, 0, count);
+            for (int i = 0; i < count; i++)
+                out.writeInt((int) (hashesAndNumbers[i] >>> 32));
+            for (int i = 0; i < count; i++)
+                out.writeLong(positions[(int) hashesAndNumbers[i]]);
+            out.flush();
+            if (tableStart + 12L * count > Integer.MAX_VALUE)
+                throw new IOException("The index is too large for a snapshot");
+
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(count).putLong(tableStart).flip();
+            channel.write(header, COUNT_POSITION);
+        }
+    }
+
+    /**
+     * @return the entry of the path or null, entries with the same hash are told apart by their path
+     */
+    IndexEntry find(int harHash, String path) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int hash = hashAt(mid);
+            if (hash < harHash)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        for (int i = low; i < count && hashAt(i) == harHash; i++) {
+            IndexEntry entry = entryAt(i);
+            if (entry.getPath().equals(path))
+                return entry;
+        }
+        return null;
+    }
+
+    private int hashAt(int i) {
+        return buffer.getInt((int) (tableStart + 4L * i));
+    }
+
+    private IndexEntry entryAt(int i) {
+        int position = (int) buffer.getLong((int) (tableStart + 4L * count + 8L * i));
+        byte[] line = new byte[buffer.getInt(position)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(line);
+        return IndexEntry.parse(line, line.length);
+    }
+
+    int size() {
+        return count;
+    }
+}
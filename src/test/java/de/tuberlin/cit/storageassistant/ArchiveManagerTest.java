@@ -1,21 +1,51 @@
 package de.tuberlin.cit.storageassistant;
 
+import de.tuberlin.cit.storageassistant.index.BinaryIndex;
 import de.tuberlin.cit.storageassistant.index.Index;
 import de.tuberlin.cit.storageassistant.index.IndexDirectory;
 import de.tuberlin.cit.storageassistant.index.IndexEntry;
+import de.tuberlin.cit.storageassistant.index.IndexFile;
+import de.tuberlin.cit.storageassistant.index.IndexReader;
+import de.tuberlin.cit.storageassistant.index.Journal;
+import de.tuberlin.cit.storageassistant.index.MasterIndexEntry;
+import de.tuberlin.cit.storageassistant.part.ArchiveCompactor;
+import de.tuberlin.cit.storageassistant.part.DistributedAppend;
+import de.tuberlin.cit.storageassistant.part.PartFileManager;
+import de.tuberlin.cit.storageassistant.read.ArchiveReader;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.yarn.server.MiniYARNCluster;
 import org.junit.Ignore;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -66,6 +96,8 @@ public class ArchiveManagerTest {
         Configuration conf = new Configuration();
         conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new Path("./target/hdfs").toString());
         conf.set("mapreduce.framework.name", "local");
+        // settings of a test reach the archive classes through the FileSystem, a cached one keeps the first conf
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
         return conf;
     }
 
@@ -144,9 +176,9 @@ public class ArchiveManagerTest {
             directoryHashes.add(DFSUtils.getHarHash(directoryPath));
         }
 
-        directoryHashes.forEach(hash -> {
+        for (int hash : directoryHashes) { // a lookup may load a partition of the index
             assertTrue("Not all directories in Index", index.containsEntryForHash(hash));
-        });
+        }
 
         testUnarchiving(archiveManager, new Path(fileList.get(0)));
     }
@@ -452,10 +484,650 @@ public class ArchiveManagerTest {
         DFSUtils.printFile(new Path("/output-test/archive.har/_index"), fs);
     }
 
+    @org.junit.Test
+    public void testAddFilesWithPlacementStrategies() throws Exception {
+        Path addFolder = new Path("/add-folder/");
+        List<String> files = createInputFiles(addFolder, 10);
+
+        for (String strategy : Arrays.asList("best-fit-decreasing", "block-aligned")) {
+            conf.set(PartFileManager.PLACEMENT_STRATEGY_KEY, strategy);
+            ArchiveManager archiveManager = new ArchiveManager(conf);
+            Path harPath = new Path("/output-test/" + strategy + ".har");
+            archiveManager.createArchive(harPath, testSrcPaths);
+            archiveManager.addFileToArchive(addFolder, harPath);
+            assertArchived(harPath, files);
+        }
+        conf.unset(PartFileManager.PLACEMENT_STRATEGY_KEY);
+    }
+
+    @org.junit.Test
+    public void testAppendToPartitionedIndex() throws Exception {
+        conf.setInt(Index.PARTITION_SIZE_KEY, 2);
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        Map<String, String> checksums = new HashMap<>();
+        for (String file : fileList)
+            checksums.put(file, DFSUtils.getChecksum(file, "hdfs", conf));
+
+        Map<MasterIndexEntry, String> partitions = readIndexPartitions(testHar, Integer.MAX_VALUE); // as created
+        int copiedPartitions = 0;
+        for (int i = 0; i < 3; i++) { // each append loads the partitions it touches
+            String file = DFSUtils.createFile(new Path("/partitioned-" + i + "/file.log"), fs);
+            checksums.put(file, DFSUtils.getChecksum(file, "hdfs", conf));
+            archiveManager.addFileToArchive(new Path(file), testHar);
+            Map<MasterIndexEntry, String> appended = readIndexPartitions(testHar, 2);
+            copiedPartitions += assertCleanPartitionsCopied(partitions, appended, file);
+            partitions = appended;
+        }
+        try (ArchiveWriter writer = archiveManager.openArchiveWriter(testHar)) {
+            for (int i = 0; i < 3; i++) { // commits of one index, whose partitions moved with each commit
+                String file = "/partitioned-written/file" + i + ".log";
+                checksums.put(file, DigestUtils.md5Hex(file));
+                writer.write(new Path(file), ByteBuffer.wrap(file.getBytes(StandardCharsets.UTF_8)));
+                writer.commit();
+                Map<MasterIndexEntry, String> written = readIndexPartitions(testHar, 2);
+                copiedPartitions += assertCleanPartitionsCopied(partitions, written, file);
+                partitions = written;
+            }
+        }
+        conf.unset(Index.PARTITION_SIZE_KEY);
+        assertTrue("No partition was copied from the previous _index", copiedPartitions > 0);
+
+        assertArchived(testHar, checksums);
+        Configuration readerConf = new Configuration(conf);
+        readerConf.setInt(ArchiveReader.CACHED_PARTITIONS_KEY, 1);
+        ArchiveReader reader = ArchiveReader.open(testHar, readerConf);
+        for (Map.Entry<String, String> file : checksums.entrySet()) {
+            try (FSDataInputStream archived = reader.open(new Path(file.getKey()))) {
+                assertEquals("Content of " + file.getKey() + " differs in the ArchiveReader", file.getValue(),
+                        DigestUtils.md5Hex(archived));
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testReadWithArchiveReader() throws Exception {
+        Path addFolder = new Path("/reader-folder/");
+        List<String> files = appendInputFiles(addFolder, 5);
+
+        ArchiveReader reader = ArchiveReader.open(testHar, conf);
+        assertEquals(5, reader.list(addFolder).size());
+        assertTrue(reader.stat(addFolder).isDirectory());
+        for (String name : files) {
+            Path file = new Path(name);
+            assertEquals(fs.getFileStatus(file).getLen(), reader.stat(file).getLen());
+            try (FSDataInputStream archived = reader.open(file); FSDataInputStream original = fs.open(file)) {
+                assertEquals("Content of " + file + " differs in the archive",
+                        DigestUtils.md5Hex(original), DigestUtils.md5Hex(archived));
+            }
+        }
+        try {
+            reader.stat(new Path(addFolder, "missing.log"));
+            fail("Found a file that was never archived");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    @org.junit.Test
+    public void testReadAllCoalesced() throws Exception {
+        Path addFolder = new Path("/read-all-folder/");
+        List<Path> files = new ArrayList<>();
+        for (String file : appendInputFiles(addFolder, 5))
+            files.add(0, new Path(file)); // against the order of the part file
+
+        Map<Path, ByteBuffer> contents = ArchiveReader.open(testHar, conf).readAll(files);
+        assertEquals(files, new ArrayList<>(contents.keySet()));
+        for (Path file : files) {
+            byte[] archived = new byte[contents.get(file).remaining()];
+            contents.get(file).get(archived);
+            assertEquals(DFSUtils.readFileContent(file, fs), new String(archived, StandardCharsets.UTF_8));
+        }
+    }
+
+    @org.junit.Test
+    public void testIndexSnapshot() throws Exception {
+        Path addFolder = new Path("/snapshot-folder/");
+        List<String> files = appendInputFiles(addFolder, 5);
+        ArchiveReader reader = ArchiveReader.open(testHar, conf);
+
+        File snapshots = new File("./target/snapshots");
+        FileUtil.fullyDelete(snapshots);
+        Configuration snapshotConf = new Configuration(conf);
+        snapshotConf.set(ArchiveReader.SNAPSHOT_DIR_KEY, snapshots.getAbsolutePath());
+        for (int run = 0; run < 2; run++) { // writes the snapshot, then maps the existing one
+            ArchiveReader snapshotReader = ArchiveReader.open(testHar, snapshotConf);
+            for (String file : files)
+                assertEquals(reader.stat(new Path(file)), snapshotReader.stat(new Path(file)));
+        }
+
+        File checksumSnapshots = new File("./target/checksum-snapshots");
+        FileUtil.fullyDelete(checksumSnapshots);
+        snapshotConf.set(ArchiveReader.SNAPSHOT_DIR_KEY, checksumSnapshots.getAbsolutePath());
+        snapshotConf.set(ArchiveReader.SNAPSHOT_VALIDATION_KEY, "checksum");
+        Path copiedHar = new Path("/archive/copiedArchive.har");
+        FileUtil.copy(fs, testHar, fs, copiedHar, false, conf);
+        ArchiveReader.open(testHar, snapshotConf);
+        ArchiveReader copyReader = ArchiveReader.open(copiedHar, snapshotConf);
+        assertEquals("The copied archive did not share the snapshot of the original", 1,
+                checksumSnapshots.list((directory, name) -> name.endsWith(".snapshot")).length);
+        for (String file : files)
+            assertEquals(reader.stat(new Path(file)).getLen(), copyReader.stat(new Path(file)).getLen());
+    }
+
+    @org.junit.Test
+    public void testBinaryIndex() throws Exception {
+        Path addFolder = new Path("/binary-folder/");
+        List<String> files = appendInputFiles(addFolder, 5);
+
+        Configuration binaryConf = new Configuration(conf);
+        binaryConf.setBoolean(Index.BINARY_INDEX_KEY, true);
+        binaryConf.setBoolean(ArchiveReader.BINARY_INDEX_KEY, true);
+        String addedLater = DFSUtils.createFile(new Path("/binary-later/file.log"), fs);
+        new ArchiveManager(binaryConf).addFileToArchive(new Path(addedLater), testHar);
+        files.add(addedLater);
+
+        Path indexPath = new Path(testHar, "_index");
+        BinaryIndex binaryIndex = BinaryIndex.read(fs, testHar, fs.getFileStatus(indexPath));
+        assertNotNull("The append did not write a binary index matching the _index", binaryIndex);
+        int entries = 0;
+        try (IndexReader indexReader = new IndexReader(fs.open(indexPath))) {
+            IndexEntry entry;
+            while ((entry = indexReader.next()) != null) {
+                IndexEntry binaryEntry = binaryIndex.find(entry.getHarHash(), entry.getPath());
+                assertNotNull(entry.getPath() + " is missing in the binary index", binaryEntry);
+                assertEquals(entry.toString(), binaryEntry.toString());
+                entries++;
+            }
+        }
+        assertEquals(entries, binaryIndex.size());
+
+        ArchiveReader textIndexReader = ArchiveReader.open(testHar, conf);
+        ArchiveReader binaryIndexReader = ArchiveReader.open(testHar, binaryConf);
+        assertEquals(5, binaryIndexReader.list(addFolder).size());
+        for (String file : files)
+            assertEquals(textIndexReader.stat(new Path(file)), binaryIndexReader.stat(new Path(file)));
+    }
+
+    @org.junit.Test
+    public void testAddFilesToArchiveDistributed() throws Exception {
+        Path addFolder = new Path("/distributed-folder/");
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            files.addAll(createInputFiles(new Path(addFolder, "sub" + i), 4));
+        Path restricted = new Path(addFolder, "sub0/file0.log");
+        fs.setPermission(restricted, new FsPermission((short) 0600));
+        fs.setTimes(restricted, 1234567L, -1);
+
+        conf.setInt(DistributedAppend.MAPS_KEY, 3);
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        archiveManager.addFilesToArchiveDistributed(new Path[]{addFolder}, testHar);
+        conf.unset(DistributedAppend.MAPS_KEY);
+
+        assertArchived(testHar, files);
+        for (int part = 1; part <= 3; part++)
+            assertTrue("Every map task writes its own part file", fs.exists(new Path(testHar, "part-" + part)));
+        assertFalse(fs.exists(new Path(testHar, "part-4")));
+        IndexFile entry = null;
+        for (IndexFile fileEntry : new Index(testHar, fs).getFileEntries()) {
+            if (fileEntry.getPath().equals(restricted.toString()))
+                entry = fileEntry;
+        }
+        assertNotNull(restricted + " is not in the index", entry);
+        assertEquals(1234567L, entry.getTime());
+        assertEquals("384", entry.getRights());
+    }
+
+    @org.junit.Test
+    public void testAddFilesFromManifest() throws Exception {
+        Path addFolder = new Path("/manifest-folder/");
+        Path manifest = new Path("/manifest.txt");
+        List<String> files = createInputFiles(addFolder, 7);
+        try (FSDataOutputStream manifestStream = fs.create(manifest)) {
+            manifestStream.writeBytes("# files to add\n");
+            for (String file : files)
+                manifestStream.writeBytes(file + "\n\n");
+            manifestStream.writeBytes(files.get(0) + "\n");
+        }
+
+        conf.setInt(ArchiveManager.MANIFEST_BATCH_KEY, 3);
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        int archivedFiles = new Index(testHar, fs).numberOfFileEntries();
+        assertEquals(8, archiveManager.addFilesFromManifest(manifest, testHar));
+        conf.unset(ArchiveManager.MANIFEST_BATCH_KEY);
+
+        assertArchived(testHar, files);
+        assertEquals("Files listed twice in the manifest are archived once",
+                archivedFiles + 7, (int) new Index(testHar, fs).numberOfFileEntries());
+    }
+
+    @org.junit.Test
+    public void testExtractArchive() throws Exception {
+        Path addFolder = new Path("/extract-folder/");
+        List<String> files = new ArrayList<>(fileList);
+        files.addAll(createInputFiles(addFolder, 5));
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        archiveManager.addFileToArchive(addFolder, testHar);
+
+        Path destination = new Path("/extracted");
+        assertEquals(files.size(), archiveManager.extractArchive(testHar, destination));
+        for (String file : files) {
+            Path extracted = new Path(destination, Path.getPathWithoutSchemeAndAuthority(new Path(file)).toString()
+                    .substring(1));
+            assertEquals("Content of " + file + " differs after extracting",
+                    DFSUtils.getChecksum(file, "hdfs", conf), DFSUtils.getChecksum(extracted.toString(), "hdfs", conf));
+            assertEquals(fs.getFileStatus(new Path(file)).getModificationTime(),
+                    fs.getFileStatus(extracted).getModificationTime());
+        }
+    }
+
+    @org.junit.Test
+    public void testCompactArchive() throws Exception {
+        Path addFolder = new Path("/compact-folder/");
+        List<String> files = new ArrayList<>(fileList);
+        files.addAll(createInputFiles(addFolder, 5));
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        archiveManager.addFileToArchive(addFolder, testHar);
+        try (FSDataOutputStream deadBytes = fs.append(new Path(testHar, "part-0"))) { // like an aborted append
+            deadBytes.write(new byte[1000]);
+        }
+
+        assertTrue(archiveManager.compactArchive(testHar) >= 1000);
+        assertEquals(0, archiveManager.compactArchive(testHar));
+        FileStatus[] partFiles = fs.globStatus(new Path(testHar, "part-*"));
+        assertEquals(1, partFiles.length);
+
+        String addedLater = DFSUtils.createFile(new Path("/compact-later/file.log"), fs);
+        archiveManager.addFileToArchive(new Path(addedLater), testHar);
+        files.add(addedLater);
+        assertArchived(testHar, files);
+    }
+
+    @org.junit.Test
+    public void testRecoverInterruptedAppend() throws Exception {
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        Path part0 = new Path(testHar, "part-0");
+        long part0Length = fs.getFileStatus(part0).getLen();
+
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, testHar)) {
+            Journal.begin(fs, testHar, lock); // an append that crashed while copying
+            try (FSDataOutputStream halfAppended = fs.append(part0)) {
+                halfAppended.write(new byte[1000]);
+            }
+            DFSUtils.createFile(new Path(testHar, "part-99"), fs);
+
+            assertTrue(Journal.recover(fs, testHar, lock));
+        }
+        assertFalse(fs.exists(Journal.pathOf(testHar)));
+        assertEquals(part0Length, fs.getFileStatus(part0).getLen());
+        assertFalse(fs.exists(new Path(testHar, "part-99")));
+
+        String addedLater = DFSUtils.createFile(new Path("/recover-later/file.log"), fs);
+        archiveManager.addFileToArchive(new Path(addedLater), testHar);
+        List<String> files = new ArrayList<>(fileList);
+        files.add(addedLater);
+        assertArchived(testHar, files);
+    }
+
+    @org.junit.Test
+    public void testRollForwardCommittingJournal() throws Exception {
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        Path part0 = new Path(testHar, "part-0");
+        long part0Length = fs.getFileStatus(part0).getLen();
+        Path index = new Path(testHar, "_index");
+        Path masterIndex = new Path(testHar, "_masterindex");
+        Path oldIndex = new Path("/roll-forward/_index");
+        Path oldMasterIndex = new Path("/roll-forward/_masterindex");
+        FileUtil.copy(fs, index, fs, oldIndex, false, conf);
+        FileUtil.copy(fs, masterIndex, fs, oldMasterIndex, false, conf);
+
+        String addedLater = DFSUtils.createFile(new Path("/roll-forward-later/file.log"), fs);
+        archiveManager.addFileToArchive(new Path(addedLater), testHar);
+        long appendedLength = fs.getFileStatus(part0).getLen();
+        assertTrue(appendedLength > part0Length);
+
+        // an append that crashed after marking its journal committing, before renaming the new index files
+        fs.rename(index, new Path(testHar, "_index.tmp"));
+        fs.rename(masterIndex, new Path(testHar, "_masterindex.tmp"));
+        fs.rename(oldIndex, index);
+        fs.rename(oldMasterIndex, masterIndex);
+        try (FSDataOutputStream journal = fs.create(Journal.pathOf(testHar))) {
+            journal.write(("ahar-journal 1\npart part-0 " + part0Length + "\ncommitting\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, testHar)) {
+            assertTrue(Journal.recover(fs, testHar, lock));
+        }
+        assertFalse(fs.exists(Journal.pathOf(testHar)));
+        assertFalse(fs.exists(new Path(testHar, "_index.tmp")));
+        assertEquals(appendedLength, fs.getFileStatus(part0).getLen());
+        assertArchived(testHar, Collections.singletonList(addedLater));
+    }
+
+    @org.junit.Test
+    public void testLostLockStopsCompaction() throws Exception {
+        new ArchiveManager(conf).createArchive(testHar, testSrcPaths);
+        try (FSDataOutputStream deadBytes = fs.append(new Path(testHar, "part-0"))) {
+            deadBytes.write(new byte[1000]);
+        }
+        long part0Length = fs.getFileStatus(new Path(testHar, "part-0")).getLen();
+
+        try (ArchiveLock lock = ArchiveLock.acquire(fs, testHar)) {
+            try (FSDataOutputStream otherHolder = fs.create(ArchiveLock.pathOf(testHar), true)) {
+                otherHolder.write("other-token other-client\n".getBytes(StandardCharsets.UTF_8));
+            }
+            new ArchiveCompactor(fs, testHar, lock).compact();
+            fail("Compacted without holding the lock");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Lost the lock"));
+        }
+        assertEquals(part0Length, fs.getFileStatus(new Path(testHar, "part-0")).getLen());
+        assertFalse(fs.exists(Journal.pathOf(testHar)));
+    }
+
+    @org.junit.Test
+    public void testBreakEmptyLock() throws Exception {
+        new ArchiveManager(conf).createArchive(testHar, testSrcPaths);
+        fs.create(ArchiveLock.pathOf(testHar), false).close(); // a holder that died before writing its token
+
+        Configuration lockConf = new Configuration(conf);
+        lockConf.setLong(ArchiveLock.EXPIRY_KEY, 1000);
+        lockConf.setLong(ArchiveLock.WAIT_KEY, 30000);
+        try (FileSystem lockFs = FileSystem.newInstance(fs.getUri(), lockConf)) {
+            long startTime = System.currentTimeMillis();
+            try (ArchiveLock lock = ArchiveLock.acquire(lockFs, testHar)) {
+                assertTrue("The empty lock was broken before it expired",
+                        System.currentTimeMillis() - startTime >= 1000);
+                lock.verify();
+            }
+        }
+        assertFalse(fs.exists(ArchiveLock.pathOf(testHar)));
+    }
+
+    @org.junit.Test
+    public void testConcurrentQueuedAppends() throws Exception {
+        new ArchiveManager(conf).createArchive(testHar, testSrcPaths);
+        Configuration queueConf = new Configuration(conf);
+        queueConf.setBoolean(ArchiveManager.QUEUE_APPENDS_KEY, true);
+        List<String> files = new ArrayList<>(fileList);
+        List<Thread> producers = new ArrayList<>();
+        List<Throwable> failures = new java.util.concurrent.CopyOnWriteArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Path folder = new Path("/queued-" + i);
+            files.addAll(createInputFiles(folder, 3));
+            producers.add(new Thread(() -> {
+                try {
+                    new ArchiveManager(queueConf).addFileToArchive(folder, testHar);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread producer : producers)
+            producer.start();
+        for (Thread producer : producers)
+            producer.join();
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertFalse(fs.exists(ArchiveLock.pathOf(testHar)));
+        assertArchived(testHar, files);
+    }
+
+    @org.junit.Test
+    public void testAppendDaemon() throws Exception {
+        File secretFile = new File("./target/daemon.secret");
+        conf.set(AppendDaemon.SECRET_FILE_KEY, secretFile.getAbsolutePath());
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        List<String> files = new ArrayList<>(fileList);
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        try (AppendDaemon daemon = archiveManager.startAppendDaemon(testHar)) {
+            for (String file : createInputFiles(new Path("/daemon-folder"), 10)) {
+                files.add(file);
+                commits.add(daemon.add(new Path(file)));
+            }
+            for (CompletableFuture<Void> commit : commits)
+                commit.get();
+            assertTrue(fs.exists(ArchiveLock.pathOf(testHar)));
+
+            int port = daemon.listen(0);
+            String sentFile = DFSUtils.createFile(new Path("/daemon-socket"), fs, "file.log", 70);
+            files.add(sentFile);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                 BufferedReader in = new BufferedReader(
+                         new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                out.write("no secret\n" + sentFile + "\n");
+                out.flush();
+                assertTrue(in.readLine().startsWith("FAILED"));
+                assertNull(in.readLine());
+            }
+            String secret = new String(Files.readAllBytes(daemon.getSecretFile().toPath()), StandardCharsets.UTF_8);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                 BufferedReader in = new BufferedReader(
+                         new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                out.write(secret + sentFile + "\n");
+                out.flush();
+                assertEquals("OK " + sentFile, in.readLine());
+            }
+        }
+
+        assertFalse(secretFile.exists());
+        assertFalse(fs.exists(ArchiveLock.pathOf(testHar)));
+        assertArchived(testHar, files);
+    }
+
+    @org.junit.Test
+    public void testWatchStagingDirectory() throws Exception {
+        conf.setLong(StagingWatcher.INTERVAL_KEY, 100);
+        conf.setBoolean(StagingWatcher.INOTIFY_KEY, false);
+        conf.setBoolean(StagingWatcher.DELETE_SOURCES_KEY, true);
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        Path staging = new Path("/staging-folder");
+        fs.mkdirs(staging);
+
+        Map<String, String> checksums = new HashMap<>();
+        try (AppendDaemon daemon = archiveManager.startAppendDaemon(testHar)) {
+            StagingWatcher watcher = new StagingWatcher(daemon, staging, conf);
+            Thread watching = new Thread(() -> {
+                try {
+                    watcher.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            watching.start();
+            for (int i = 0; i < 10; i++) {
+                String file = DFSUtils.createFile(staging, fs, String.format("file%d.log", i), 50 + i);
+                checksums.put(file, DFSUtils.getChecksum(file, "hdfs", conf));
+            }
+            long deadline = System.currentTimeMillis() + 60000;
+            while (fs.listFiles(staging, true).hasNext() && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+            assertFalse("Files were left in the staging directory", fs.listFiles(staging, true).hasNext());
+
+            // a new version under an archived name is moved aside, not deleted
+            DFSUtils.createFile(staging, fs, "file0.log", 200);
+            Path quarantined = new Path(staging, "_quarantine/file0.log");
+            while (!fs.exists(quarantined) && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+            watcher.close();
+            watching.join();
+        }
+
+        assertTrue("The new version of an archived file was not quarantined",
+                fs.exists(new Path(staging, "_quarantine/file0.log")));
+        assertArchived(testHar, checksums);
+    }
+
+    @org.junit.Test
+    public void testWriteStreamsToArchive() throws Exception {
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        Map<String, String> checksums = new HashMap<>();
+        FileStatus metadata = new FileStatus(8, false, 0, 0, 1234567L, 0, new FsPermission((short) 0600),
+                "producer", "producers", new Path("/streamed/meta.txt"));
+
+        try (ArchiveWriter writer = archiveManager.openArchiveWriter(testHar)) {
+            for (int i = 0; i < 10; i++) {
+                byte[] content = String.format("streamed file %d", i).getBytes(StandardCharsets.UTF_8);
+                String file = String.format("/streamed/sub%d/file%d.log", i % 3, i);
+                writer.write(new Path(file), ByteBuffer.wrap(content));
+                checksums.put(file, DigestUtils.md5Hex(content));
+            }
+            writer.write(metadata, new ByteArrayInputStream("metadata".getBytes(StandardCharsets.UTF_8)));
+            checksums.put("/streamed/meta.txt", DigestUtils.md5Hex("metadata"));
+            ByteArrayInputStream concatenated = new ByteArrayInputStream("firstsecond".getBytes(StandardCharsets.UTF_8));
+            writer.write(new Path("/streamed/first.txt"), concatenated, 5);
+            writer.write(new Path("/streamed/second.txt"), concatenated, 6);
+            checksums.put("/streamed/first.txt", DigestUtils.md5Hex("first"));
+            checksums.put("/streamed/second.txt", DigestUtils.md5Hex("second"));
+            writer.commit();
+
+            try {
+                writer.write(new Path("/streamed/short.log"), new ByteArrayInputStream(new byte[10]), 20);
+                fail("A stream shorter than the given length was written");
+            } catch (IOException expected) {
+                // rolled back, the writer goes on with the next file
+            }
+            writer.write(new Path("/streamed/after.log"), ByteBuffer.wrap(new byte[20]));
+            checksums.put("/streamed/after.log", DigestUtils.md5Hex(new byte[20]));
+        }
+
+        assertFalse("Streamed files were written to HDFS", fs.exists(new Path("/streamed")));
+        assertFalse(fs.exists(ArchiveLock.pathOf(testHar)));
+        assertArchived(testHar, checksums);
+        Index index = new Index(testHar, fs);
+        assertFalse("The rolled back file is in the index",
+                index.containsEntryForHash(DFSUtils.getHarHash("/streamed/short.log")));
+        IndexFile entry = null;
+        for (IndexFile fileEntry : index.getFileEntries()) {
+            if (fileEntry.getPath().equals("/streamed/meta.txt"))
+                entry = fileEntry;
+        }
+        assertNotNull("The file written with metadata is not in the index", entry);
+        assertEquals("producer", entry.getUser());
+        assertEquals("producers", entry.getGroup());
+        assertEquals(1234567L, entry.getTime());
+        assertEquals("384", entry.getRights());
+    }
+
     /**
      * Helper Methods
      */
 
+    /**
+     * Creates the files file0.log to file[n - 1].log in the folder, file i with 10 + i * 100 bytes.
+     *
+     * @return paths of the created files
+     */
+    private List<String> createInputFiles(Path folder, int n) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            files.add(DFSUtils.createFile(folder, fs, String.format("file%d.log", i), 10 + i * 100));
+        return files;
+    }
+
+    /**
+     * Creates the archive of the input files and appends n files created in the folder with
+     * {@link #createInputFiles(Path, int)}.
+     *
+     * @return paths of the appended files
+     */
+    private List<String> appendInputFiles(Path folder, int n) throws Exception {
+        List<String> files = createInputFiles(folder, n);
+        ArchiveManager archiveManager = new ArchiveManager(conf);
+        archiveManager.createArchive(testHar, testSrcPaths);
+        archiveManager.addFileToArchive(folder, testHar);
+        return files;
+    }
+
+    /**
+     * Asserts that the archive holds the files with the same content as HDFS.
+     */
+    private void assertArchived(Path har, Collection<String> files) throws Exception {
+        Map<String, String> checksums = new HashMap<>();
+        for (String file : files)
+            checksums.put(file, DFSUtils.getChecksum(file, "hdfs", conf));
+        assertArchived(har, checksums);
+    }
+
+    /**
+     * Asserts that the archive holds the files with the given MD5 checksums, e.g. of sources that are gone.
+     */
+    private void assertArchived(Path har, Map<String, String> checksums) throws Exception {
+        for (Map.Entry<String, String> file : checksums.entrySet()) {
+            assertEquals("Content of " + file.getKey() + " differs in " + har, file.getValue(),
+                    DFSUtils.getChecksum(har.suffix(file.getKey()).toString(), "har", conf));
+        }
+    }
+
+    /**
+     * Reads the partitions of the _index as the _masterindex lists them and asserts that each one consists of
+     * at most partitionSize whole lines in its hash range.
+     *
+     * @return content of each partition, in the order of the _index
+     */
+    private Map<MasterIndexEntry, String> readIndexPartitions(Path har, int partitionSize) throws IOException {
+        List<MasterIndexEntry> partitions = Index.readMasterIndex(har, fs);
+        assertFalse("The _masterindex does not describe the _index", partitions.isEmpty());
+        byte[] index;
+        try (FSDataInputStream in = fs.open(new Path(har, "_index"))) {
+            index = IOUtils.toByteArray(in);
+        }
+        Map<MasterIndexEntry, String> contents = new LinkedHashMap<>();
+        long previousLastHash = Long.MIN_VALUE;
+        for (MasterIndexEntry partition : partitions) {
+            String content = new String(index, (int) partition.getStartPosition(), (int) partition.getLength(),
+                    StandardCharsets.UTF_8);
+            String name = "Partition at " + partition.getStartPosition();
+            assertTrue(name + " does not end with a line", content.endsWith("\n"));
+            String[] lines = content.split("\n");
+            assertTrue(name + " is too large", lines.length <= partitionSize);
+            for (String line : lines) {
+                int hash = IndexEntry.parse(line).getHarHash();
+                assertTrue(line + " is outside the hash range of the " + name,
+                        hash > previousLastHash && hash <= partition.getLastHash());
+            }
+            previousLastHash = partition.getLastHash();
+            contents.put(partition, content);
+        }
+        return contents;
+    }
+
+    /**
+     * Asserts that each partition that holds neither the added file nor one of its parent directories is found
+     * byte by byte in the new _index.
+     *
+     * @return number of copied partitions
+     */
+    private int assertCleanPartitionsCopied(Map<MasterIndexEntry, String> before, Map<MasterIndexEntry, String> after,
+                                            String addedFile) {
+        Set<Integer> changedHashes = new HashSet<>();
+        for (Path path = new Path(addedFile); path != null; path = path.getParent())
+            changedHashes.add(DFSUtils.getHarHash(path.toString()));
+        List<MasterIndexEntry> partitions = new ArrayList<>(before.keySet());
+        int copied = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            long low = i == 0 ? Long.MIN_VALUE : partitions.get(i - 1).getLastHash();
+            long high = i == partitions.size() - 1 ? Integer.MAX_VALUE : partitions.get(i).getLastHash();
+            if (changedHashes.stream().anyMatch(hash -> hash > low && hash <= high))
+                continue;
+            assertTrue("Partition at " + partitions.get(i).getStartPosition() + " was not copied unchanged",
+                    after.containsValue(before.get(partitions.get(i))));
+            copied++;
+        }
+        return copied;
+    }
+
     /**
      * equivalent to hdfs dfs -ls -R /
      */